@@ -0,0 +1,58 @@
+package me.bechberger.benchmarks;
+
+import javassist.ClassPool;
+import me.bechberger.ClassTransformer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Transformation of a single class by the agent, on a corpus of real class files (the classes of Javassist)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassTransformerBenchmark {
+
+    private record ClassFile(String name, byte[] bytes) {
+    }
+
+    private final List<ClassFile> corpus = new ArrayList<>();
+    private ClassTransformer transformer;
+    private ClassLoader loader;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException, URISyntaxException {
+        Path jar = Path.of(ClassPool.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            for (JarEntry entry : jarFile.stream().toList()) {
+                String name = entry.getName();
+                if (name.startsWith("javassist/") && name.endsWith(".class")) {
+                    corpus.add(new ClassFile(name.substring(0, name.length() - 6),
+                            jarFile.getInputStream(entry).readAllBytes()));
+                }
+            }
+        }
+        transformer = new ClassTransformer();
+        loader = getClass().getClassLoader();
+    }
+
+    /** the used state of a class is never recorded, so every class is rewritten again */
+    @Benchmark
+    public byte[] transform() {
+        ClassFile classFile = corpus.get(next);
+        next = (next + 1) % corpus.size();
+        return transformer.transform(null, loader, classFile.name, null, null, classFile.bytes);
+    }
+}
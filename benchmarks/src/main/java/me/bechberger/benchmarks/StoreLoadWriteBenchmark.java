@@ -0,0 +1,73 @@
+package me.bechberger.benchmarks;
+
+import me.bechberger.runtime.Store;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and writing stores of different sizes, in the text and the binary format
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StoreLoadWriteBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int entries;
+
+    @Param({"text", "binary"})
+    private String format;
+
+    private Path file;
+    private Store store;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        store = new Store();
+        String[] noInterfaces = new String[0];
+        for (int i = 0; i < entries; i++) {
+            String className = "com.example.p" + (i % 1000) + ".Class" + i;
+            store.processClassLoad(className, noInterfaces);
+            if (i % 3 == 0) {
+                store.processClassUsage(className);
+            }
+        }
+        file = Files.createTempFile("store", "." + format);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            write(store, out);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private void write(Store store, OutputStream out) throws IOException {
+        if (format.equals("binary")) {
+            store.writeBinaryTo(out);
+        } else {
+            store.writeTo(out);
+        }
+    }
+
+    /** binary stores are mapped lazily, so this only measures opening them */
+    @Benchmark
+    public Store load() throws IOException {
+        return new Store().load(file);
+    }
+
+    @Benchmark
+    public void writeTo() throws IOException {
+        write(store, OutputStream.nullOutputStream());
+    }
+}
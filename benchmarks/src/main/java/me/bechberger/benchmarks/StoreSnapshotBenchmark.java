@@ -0,0 +1,69 @@
+package me.bechberger.benchmarks;
+
+import me.bechberger.runtime.Store;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Store#processClassUsage(String)} called by three threads, while a fourth thread continuously writes
+ * snapshots via {@link Store#writeSnapshotTo(OutputStream)} ({@code withSnapshots}) or without it ({@code usageOnly})
+ * <p>
+ * Snapshots don't block the store, so the usage throughput of both groups should only differ by the CPU time
+ * (and allocations) that the snapshot thread takes away, given enough cores.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreSnapshotBenchmark {
+
+    private static final int CLASSES = 1 << 18;
+    private static final String[] NO_INTERFACES = new String[0];
+
+    private final String[] classNames = new String[CLASSES];
+    private final AtomicInteger counter = new AtomicInteger();
+    private Store store;
+
+    @Setup(Level.Trial)
+    public void createClassNames() {
+        for (int i = 0; i < CLASSES; i++) {
+            classNames[i] = "com.example.p" + (i % 1000) + ".Class" + i;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void createStore() {
+        store = new Store();
+        for (int i = 0; i < CLASSES; i++) {
+            store.processClassLoad(classNames[i], NO_INTERFACES);
+        }
+        counter.set(0);
+    }
+
+    @Benchmark
+    @Group("withSnapshots")
+    @GroupThreads(3)
+    public void usage() {
+        store.processClassUsage(classNames[counter.getAndIncrement() & (CLASSES - 1)]);
+    }
+
+    @Benchmark
+    @Group("withSnapshots")
+    @GroupThreads(1)
+    public void snapshot() throws IOException {
+        store.writeSnapshotTo(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    @Group("usageOnly")
+    @GroupThreads(3)
+    public void usageWithoutSnapshots() {
+        store.processClassUsage(classNames[counter.getAndIncrement() & (CLASSES - 1)]);
+    }
+}
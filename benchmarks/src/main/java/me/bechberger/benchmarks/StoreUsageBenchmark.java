@@ -0,0 +1,54 @@
+package me.bechberger.benchmarks;
+
+import me.bechberger.runtime.Store;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Store#processClassUsage(String)} called by multiple threads (change it via {@code -t}),
+ * like the static initializers of concurrently initialized classes
+ * <p>
+ * Every iteration starts with a fresh store in which all classes are loaded, the threads take the classes
+ * from a shared counter, so every class is used once, until the counter wraps around.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class StoreUsageBenchmark {
+
+    private static final int CLASSES = 1 << 20;
+    private static final String[] NO_INTERFACES = new String[0];
+
+    private final String[] classNames = new String[CLASSES];
+    private final String[] interfaces = new String[]{"com.example.api.Service"};
+    private final AtomicInteger counter = new AtomicInteger();
+    private Store store;
+
+    @Setup(Level.Trial)
+    public void createClassNames() {
+        for (int i = 0; i < CLASSES; i++) {
+            classNames[i] = "com.example.p" + (i % 1000) + ".Class" + i;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void createStore() {
+        store = new Store();
+        store.processClassLoad(interfaces[0], NO_INTERFACES);
+        for (int i = 0; i < CLASSES; i++) {
+            store.processClassLoad(classNames[i], i % 4 == 0 ? interfaces : NO_INTERFACES);
+        }
+        counter.set(0);
+    }
+
+    @Benchmark
+    public void processClassUsage() {
+        store.processClassUsage(classNames[counter.getAndIncrement() & (CLASSES - 1)]);
+    }
+}
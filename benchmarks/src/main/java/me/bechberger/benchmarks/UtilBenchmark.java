@@ -0,0 +1,47 @@
+package me.bechberger.benchmarks;
+
+import me.bechberger.processor.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+
+/**
+ * Name conversions that are called for every entry of the processed JARs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    private final JarEntry[] classEntries = {
+            new JarEntry("org/springframework/boot/SpringApplication.class"),
+            new JarEntry("BOOT-INF/classes/org/springframework/samples/petclinic/owner/OwnerController.class"),
+            new JarEntry("ch/qos/logback/classic/spi/LoggingEvent$1.class")
+    };
+
+    private final String[] libraryPaths = {
+            "BOOT-INF/lib/spring-core-6.0.2.jar",
+            "BOOT-INF/lib/jakarta.annotation-api-2.1.1.jar",
+            "BOOT-INF/lib/HdrHistogram-2.1.12.jar",
+            "BOOT-INF/lib/plain.jar"
+    };
+
+    @Benchmark
+    public void classNameForJarEntry(Blackhole blackhole) {
+        for (JarEntry entry : classEntries) {
+            blackhole.consume(Util.classNameForJarEntry(entry));
+        }
+    }
+
+    @Benchmark
+    public void libraryNameForPath(Blackhole blackhole) {
+        for (String path : libraryPaths) {
+            blackhole.consume(Util.libraryNameForPath(path));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package me.bechberger.benchmarks.e2e;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Times the commands of the tool and the startup with the agent on a generated fat JAR
+ * (see {@link FatJarGenerator}), every task runs in a new JVM
+ * <p>
+ * The throughput is the number of classes (or bytes) in the fat JAR divided by the median wall-clock time,
+ * the startup overhead of the agent is relative to running the JAR without agent.
+ * The incremental run uses the output of the instrumenting run as its input.
+ */
+@Command(name = "endToEnd", mixinStandardHelpOptions = true,
+        description = "Time instrument, reduceJAR, unusedLibraries and the agent on a generated fat JAR")
+public class EndToEndBenchmark implements Callable<Integer> {
+
+    @Option(names = "--dead-code", paramLabel = "JAR", description = "The dead-code JAR, default: ${DEFAULT-VALUE}")
+    private Path deadCodeJar = Path.of("target/dead-code.jar");
+
+    @Option(names = "--work-dir", paramLabel = "DIR", description = "Directory for the generated and the output " +
+            "files, default: a temporary directory that is deleted afterwards")
+    private Path workDirectory;
+
+    @Option(names = "--runs", description = "Measured runs per task, default: ${DEFAULT-VALUE}")
+    private int runs = 5;
+
+    @Option(names = "--warmup", description = "Unmeasured runs per task, default: ${DEFAULT-VALUE}")
+    private int warmup = 1;
+
+    @Option(names = "--json", paramLabel = "FILE", description = "Write the results as JSON to this file")
+    private Path jsonFile;
+
+    @Option(names = "--libraries", description = "Number of nested libraries, default: ${DEFAULT-VALUE}")
+    private int libraries = 50;
+
+    @Option(names = "--classes", description = "Number of classes per library and in the application, " +
+            "default: ${DEFAULT-VALUE}")
+    private int classes = 200;
+
+    @Option(names = "--interface-depth", description = "Length of the interface chain in each library, " +
+            "default: ${DEFAULT-VALUE}")
+    private int interfaceDepth = 3;
+
+    @Option(names = "--used-ratio", description = "Ratio of the used libraries and of the used classes " +
+            "in them, default: ${DEFAULT-VALUE}")
+    private double usedRatio = 0.5;
+
+    @Option(names = "--seed", description = "Seed of the random choices, default: ${DEFAULT-VALUE}")
+    private long seed = 0;
+
+    record TaskResult(String task, double medianMillis, double classesPerSecond, double megabytesPerSecond,
+                      Double overheadPercent) {
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        if (!Files.exists(deadCodeJar)) {
+            throw new IOException("Could not find " + deadCodeJar + ", build it first or pass --dead-code");
+        }
+        boolean temporary = workDirectory == null;
+        Path dir = temporary ? Files.createTempDirectory("end-to-end") : Files.createDirectories(workDirectory);
+        try {
+            return run(dir);
+        } finally {
+            if (temporary) {
+                try (var files = Files.walk(dir)) {
+                    for (Path file : files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private int run(Path dir) throws Exception {
+        Path jar = dir.resolve("fat.jar");
+        Path store = dir.resolve("classes.txt");
+        FatJarGenerator.Result generated = new FatJarGenerator(jar, store, libraries, classes, interfaceDepth,
+                usedRatio, seed).generate();
+        long jarSize = Files.size(jar);
+        System.out.printf("Generated %d classes (%d used) in %d libraries (%d used), %.1f MB%n", generated.classes(),
+                generated.usedClasses(), libraries, generated.usedLibraries(), jarSize / 1e6);
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        String deadCode = deadCodeJar.toAbsolutePath().toString();
+        List<TaskResult> results = new ArrayList<>();
+        // the JAR index would answer repeated runs without reading the JAR
+        results.add(time("instrument", generated, jarSize, null, java, "-jar", deadCode, "--no-index",
+                dir.resolve("instrument-store.txt").toString(), "instrument", jar.toString(),
+                dir.resolve("instrumented.jar").toString()));
+        results.add(time("reduceJAR", generated, jarSize, null, java, "-jar", deadCode, "--no-index",
+                store.toString(), "reduceJAR", jar.toString(), dir.resolve("reduced.jar").toString()));
+        results.add(time("unusedLibraries", generated, jarSize, null, java, "-jar", deadCode, "--no-index",
+                store.toString(), "unusedLibraries", jar.toString()));
+        TaskResult baseline = time("startup", generated, jarSize, null, java, "-jar", jar.toString());
+        results.add(baseline);
+        for (String mode : List.of("instrument", "jfr")) {
+            results.add(time("startup with agent (" + mode + ")", generated, jarSize, baseline, java,
+                    "-javaagent:" + deadCode + "=output=" + dir.resolve("agent-" + mode + ".txt") + ",mode=" + mode,
+                    "-jar", jar.toString()));
+        }
+        // a second profiling round that starts with the result of the first one
+        results.add(time("startup with agent (incremental)", generated, jarSize, baseline, java,
+                "-javaagent:" + deadCode + "=input=" + dir.resolve("agent-instrument.txt") + ",output=" +
+                        dir.resolve("agent-incremental.txt") + ",incremental=true", "-jar", jar.toString()));
+
+        System.out.printf("%n%-32s %12s %14s %10s %10s%n", "Task", "Median [ms]", "Classes/s", "MB/s", "Overhead");
+        for (TaskResult result : results) {
+            System.out.printf(Locale.ROOT, "%-32s %12.1f %14.0f %10.2f %10s%n", result.task, result.medianMillis,
+                    result.classesPerSecond, result.megabytesPerSecond,
+                    result.overheadPercent == null ? "" : String.format(Locale.ROOT, "%.1f%%",
+                            result.overheadPercent));
+        }
+        if (jsonFile != null) {
+            Files.writeString(jsonFile, toJson(results));
+        }
+        return 0;
+    }
+
+    /**
+     * Run the command repeatedly and compute the throughput from the median time
+     *
+     * @param baseline the run to compare with, might be null
+     */
+    private TaskResult time(String task, FatJarGenerator.Result generated, long jarSize, TaskResult baseline,
+                            String... command) throws IOException, InterruptedException {
+        System.out.println("Running " + task);
+        double[] millis = new double[runs];
+        for (int i = -warmup; i < runs; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            int exitCode = process.waitFor();
+            long end = System.nanoTime();
+            if (exitCode != 0) {
+                throw new IOException(task + " failed with exit code " + exitCode + ": " + String.join(" ", command));
+            }
+            if (i >= 0) {
+                millis[i] = (end - start) / 1e6;
+            }
+        }
+        Arrays.sort(millis);
+        double median = runs % 2 == 1 ? millis[runs / 2] : (millis[runs / 2 - 1] + millis[runs / 2]) / 2;
+        return new TaskResult(task, median, generated.classes() / (median / 1000),
+                jarSize / 1e6 / (median / 1000),
+                baseline == null ? null : (median / baseline.medianMillis - 1) * 100);
+    }
+
+    private String toJson(List<TaskResult> results) {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\"libraries\": %d, \"classes\": %d, \"interfaceDepth\": %d, " +
+                "\"usedRatio\": %s, \"seed\": %d, \"runs\": %d, \"results\": [", libraries, classes, interfaceDepth,
+                usedRatio, seed, runs));
+        for (int i = 0; i < results.size(); i++) {
+            TaskResult result = results.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format(Locale.ROOT, "  {\"task\": \"%s\", \"medianMillis\": %.3f, " +
+                            "\"classesPerSecond\": %.1f, \"megabytesPerSecond\": %.3f, \"overheadPercent\": %s}",
+                    result.task, result.medianMillis, result.classesPerSecond, result.megabytesPerSecond,
+                    result.overheadPercent == null ? "null" : String.format(Locale.ROOT, "%.2f",
+                            result.overheadPercent)));
+        }
+        return json.append("\n]}\n").toString();
+    }
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new EndToEndBenchmark()).execute(args));
+    }
+}
@@ -0,0 +1,219 @@
+package me.bechberger.benchmarks.e2e;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewMethod;
+import javassist.Modifier;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Generates a Spring-Boot-style fat JAR with synthetic classes and libraries, and the store file
+ * that the agent would record when running it
+ * <p>
+ * Every library (and the application itself) has a chain of interfaces and classes that implement the
+ * most specific interface. The first library is always used, each of the others with the used ratio,
+ * and the classes of used libraries are used with the same ratio. The JAR can be run with {@code java -jar},
+ * it initializes the used classes. The output is the same for the same options.
+ */
+@Command(name = "generateFatJar", mixinStandardHelpOptions = true,
+        description = "Generate a synthetic fat JAR and the matching store file")
+public class FatJarGenerator implements Callable<Integer> {
+
+    static final String APPLICATION_PACKAGE = "app";
+
+    @Parameters(index = "0", paramLabel = "JAR", description = "The fat JAR to create")
+    private Path jar;
+
+    @Parameters(index = "1", paramLabel = "STORE", description = "The store file to create")
+    private Path store;
+
+    @Option(names = "--libraries", description = "Number of nested libraries, default: ${DEFAULT-VALUE}")
+    private int libraries = 50;
+
+    @Option(names = "--classes", description = "Number of classes per library and in the application, " +
+            "default: ${DEFAULT-VALUE}")
+    private int classes = 200;
+
+    @Option(names = "--interface-depth", description = "Length of the interface chain in each library, " +
+            "default: ${DEFAULT-VALUE}")
+    private int interfaceDepth = 3;
+
+    @Option(names = "--used-ratio", description = "Ratio of the used libraries and of the used classes " +
+            "in them, default: ${DEFAULT-VALUE}")
+    private double usedRatio = 0.5;
+
+    @Option(names = "--seed", description = "Seed of the random choices, default: ${DEFAULT-VALUE}")
+    private long seed = 0;
+
+    /** summary of a generated JAR */
+    record Result(int classes, int usedClasses, int usedLibraries) {
+    }
+
+    public FatJarGenerator() {
+    }
+
+    FatJarGenerator(Path jar, Path store, int libraries, int classes, int interfaceDepth, double usedRatio, long seed) {
+        this.jar = jar;
+        this.store = store;
+        this.libraries = libraries;
+        this.classes = classes;
+        this.interfaceDepth = interfaceDepth;
+        this.usedRatio = usedRatio;
+        this.seed = seed;
+    }
+
+    @Override
+    public Integer call() throws IOException, CannotCompileException {
+        Result result = generate();
+        System.out.printf("Generated %s with %d classes (%d used) in %d libraries (%d used)%n", jar, result.classes,
+                result.usedClasses, libraries, result.usedLibraries);
+        return 0;
+    }
+
+    Result generate() throws IOException, CannotCompileException {
+        Random random = new Random(seed);
+        ClassPool pool = new ClassPool(true);
+        List<String> usedClasses = new ArrayList<>();
+        TreeSet<String> storeLines = new TreeSet<>();
+        int classCount = 0;
+        int usedLibraries = 0;
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, NestedJarLauncher.class.getName());
+        manifest.getMainAttributes().putValue("Start-Class", GeneratedApplication.class.getName());
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            addClassFile(out, "", NestedJarLauncher.class);
+            addClassFile(out, "BOOT-INF/classes/", GeneratedApplication.class);
+            storeLines.add("u " + NestedJarLauncher.class.getName());
+            storeLines.add("u " + GeneratedApplication.class.getName());
+            // the application classes, always used
+            classCount += writeClasses(pool, APPLICATION_PACKAGE, true, random, out, "BOOT-INF/classes/",
+                    usedClasses, storeLines);
+            for (int i = 0; i < libraries; i++) {
+                boolean used = i == 0 || random.nextDouble() < usedRatio;
+                if (used) {
+                    usedLibraries++;
+                }
+                ByteArrayOutputStream library = new ByteArrayOutputStream();
+                try (JarOutputStream libraryOut = new JarOutputStream(library)) {
+                    classCount += writeClasses(pool, "lib" + i, used, random, libraryOut, "", usedClasses, storeLines);
+                }
+                // nested libraries are STORED, like in Spring Boot JARs
+                addStoredEntry(out, "BOOT-INF/lib/lib" + i + "-1.0.0.jar", library.toByteArray());
+            }
+            out.putNextEntry(new JarEntry("BOOT-INF/classes/" + GeneratedApplication.USED_CLASSES));
+            out.write((String.join("\n", usedClasses) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        Files.write(store, storeLines);
+        return new Result(classCount, usedClasses.size(), usedLibraries);
+    }
+
+    /**
+     * Write the interfaces and classes of a package
+     *
+     * @param used whether the package is used, then classes are used with the used ratio
+     * @return number of written classes and interfaces
+     */
+    private int writeClasses(ClassPool pool, String packageName, boolean used, Random random, JarOutputStream out,
+                             String prefix, List<String> usedClasses, TreeSet<String> storeLines)
+            throws IOException, CannotCompileException {
+        List<CtClass> interfaces = new ArrayList<>();
+        for (int level = 0; level < interfaceDepth; level++) {
+            CtClass iface = pool.makeInterface(packageName + ".api.Level" + level,
+                    level == 0 ? null : interfaces.get(level - 1));
+            if (level == 0) {
+                iface.addMethod(CtNewMethod.make("public abstract int value();", iface));
+            }
+            interfaces.add(iface);
+        }
+        boolean anyUsed = false;
+        for (int i = 0; i < classes; i++) {
+            String className = packageName + ".impl.Class" + i;
+            CtClass cc = pool.makeClass(className);
+            CtField field = new CtField(CtClass.intType, "VALUE", cc);
+            field.setModifiers(Modifier.PUBLIC | Modifier.STATIC);
+            cc.addField(field);
+            cc.makeClassInitializer().setBody("{ VALUE = " + i + "; }");
+            if (!interfaces.isEmpty()) {
+                cc.addInterface(interfaces.get(interfaces.size() - 1));
+                cc.addMethod(CtNewMethod.make("public int value() { return VALUE; }", cc));
+            }
+            writeClass(out, prefix, cc);
+            if (used && random.nextDouble() < usedRatio) {
+                usedClasses.add(className);
+                storeLines.add("u " + className);
+                anyUsed = true;
+            }
+        }
+        for (CtClass iface : interfaces) {
+            if (anyUsed) {
+                // the agent records the interfaces of used classes as used
+                storeLines.add("u " + iface.getName());
+            }
+            writeClass(out, prefix, iface);
+        }
+        return classes + interfaceDepth;
+    }
+
+    private static void writeClass(JarOutputStream out, String prefix, CtClass cc)
+            throws IOException, CannotCompileException {
+        out.putNextEntry(new JarEntry(prefix + cc.getName().replace('.', '/') + ".class"));
+        out.write(cc.toBytecode());
+        out.closeEntry();
+        cc.detach();
+    }
+
+    /** copy the class file of a class of this module */
+    private static void addClassFile(JarOutputStream out, String prefix, Class<?> klass) throws IOException {
+        String name = klass.getName().replace('.', '/') + ".class";
+        try (InputStream in = klass.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Could not find " + name);
+            }
+            out.putNextEntry(new JarEntry(prefix + name));
+            in.transferTo(out);
+            out.closeEntry();
+        }
+    }
+
+    private static void addStoredEntry(JarOutputStream out, String name, byte[] data) throws IOException {
+        JarEntry entry = new JarEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new FatJarGenerator()).execute(args));
+    }
+}
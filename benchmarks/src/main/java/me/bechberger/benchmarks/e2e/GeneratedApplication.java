@@ -0,0 +1,34 @@
+package me.bechberger.benchmarks.e2e;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Main class of the generated fat JARs (copied into their {@code BOOT-INF/classes}):
+ * initializes all classes listed in the {@value #USED_CLASSES} resource
+ * <p>
+ * Only depends on the JDK.
+ */
+public class GeneratedApplication {
+
+    static final String USED_CLASSES = "used-classes.txt";
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        int count = 0;
+        try (InputStream in = loader.getResourceAsStream(USED_CLASSES);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    Class.forName(line, true, loader);
+                    count++;
+                }
+            }
+        }
+        System.out.println("Initialized " + count + " classes");
+    }
+}
@@ -0,0 +1,59 @@
+package me.bechberger.benchmarks.e2e;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Minimal launcher for the generated fat JARs (copied into their root), similar to the Spring Boot JarLauncher:
+ * loads the {@code Start-Class} from {@code BOOT-INF/classes} and the libraries in {@code BOOT-INF/lib},
+ * which are extracted into a temporary directory
+ * <p>
+ * Only depends on the JDK.
+ */
+public class NestedJarLauncher {
+
+    public static void main(String[] args) throws Exception {
+        File jar = new File(NestedJarLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path libDirectory = Files.createTempDirectory("launcher-libs");
+        try (JarFile jarFile = new JarFile(jar)) {
+            List<URL> urls = new ArrayList<>();
+            urls.add(new URL("jar:" + jar.toURI() + "!/BOOT-INF/classes/"));
+            for (JarEntry entry : jarFile.stream().toList()) {
+                if (entry.getName().startsWith("BOOT-INF/lib/") && entry.getName().endsWith(".jar")) {
+                    Path lib = libDirectory.resolve(Path.of(entry.getName()).getFileName().toString());
+                    try (InputStream in = jarFile.getInputStream(entry)) {
+                        Files.copy(in, lib, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    urls.add(lib.toUri().toURL());
+                }
+            }
+            String startClass = jarFile.getManifest().getMainAttributes().getValue("Start-Class");
+            try (URLClassLoader loader = new URLClassLoader(urls.toArray(URL[]::new),
+                    NestedJarLauncher.class.getClassLoader())) {
+                Thread.currentThread().setContextClassLoader(loader);
+                loader.loadClass(startClass).getMethod("main", String[].class).invoke(null, (Object) args);
+            }
+        } finally {
+            deleteRecursively(libDirectory);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package me.bechberger;
+
+import me.bechberger.runtime.Store;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the transformer and the store
+ * <p>
+ * All counters are striped ({@link LongAdder}), so recording them on the transform path takes no locks.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    public static final String OBJECT_NAME = "me.bechberger:type=DeadCodeAgent";
+
+    private static final int BUCKETS = 64;
+
+    private final Store store;
+    private final LongAdder transformedClasses = new LongAdder();
+    private final LongAdder skippedClasses = new LongAdder();
+    private final LongAdder knownUsedClasses = new LongAdder();
+    private final LongAdder frozenClasses = new LongAdder();
+    private final LongAdder failedClasses = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder transformNanos = new LongAdder();
+    private final LongAdder[] transformLatencies = new LongAdder[BUCKETS];
+
+    public AgentMetrics(Store store) {
+        this.store = store;
+        for (int i = 0; i < BUCKETS; i++) {
+            transformLatencies[i] = new LongAdder();
+        }
+    }
+
+    enum Outcome {
+        TRANSFORMED, SKIPPED, KNOWN_USED, FROZEN, FAILED
+    }
+
+    /** record a call of the transformer */
+    void recordTransform(Outcome outcome, long nanos, int bytesIn, int bytesOut) {
+        switch (outcome) {
+            case TRANSFORMED -> transformedClasses.increment();
+            case SKIPPED -> skippedClasses.increment();
+            case KNOWN_USED -> knownUsedClasses.increment();
+            case FROZEN -> frozenClasses.increment();
+            case FAILED -> failedClasses.increment();
+        }
+        this.bytesIn.add(bytesIn);
+        this.bytesOut.add(bytesOut);
+        transformNanos.add(nanos);
+        transformLatencies[BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long getTransformedClasses() {
+        return transformedClasses.sum();
+    }
+
+    @Override
+    public long getSkippedClasses() {
+        return skippedClasses.sum();
+    }
+
+    @Override
+    public long getKnownUsedClasses() {
+        return knownUsedClasses.sum();
+    }
+
+    @Override
+    public long getFrozenClasses() {
+        return frozenClasses.sum();
+    }
+
+    @Override
+    public long getFailedClasses() {
+        return failedClasses.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getTransformNanos() {
+        return transformNanos.sum();
+    }
+
+    @Override
+    public long[] getTransformLatencyHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = transformLatencies[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getProcessClassUsageCalls() {
+        return store.getProcessClassUsageCalls();
+    }
+
+    @Override
+    public long getProcessClassUsageNanos() {
+        return store.getProcessClassUsageNanos();
+    }
+
+    @Override
+    public long getStoreClassCount() {
+        return store.getClassCount();
+    }
+
+    /** summary as {@code key: value} lines, the histogram only contains the non-empty buckets */
+    public String getSummary() {
+        StringWriter summary = new StringWriter();
+        PrintWriter out = new PrintWriter(summary);
+        out.println("# dead-code agent metrics");
+        out.println("transformedClasses: " + getTransformedClasses());
+        out.println("skippedClasses: " + getSkippedClasses());
+        out.println("knownUsedClasses: " + getKnownUsedClasses());
+        out.println("frozenClasses: " + getFrozenClasses());
+        out.println("failedClasses: " + getFailedClasses());
+        out.println("bytesIn: " + getBytesIn());
+        out.println("bytesOut: " + getBytesOut());
+        out.println("transformNanos: " + getTransformNanos());
+        long[] histogram = getTransformLatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (histogram[i] > 0) {
+                out.println("transformLatency[<" + (1L << i) + "ns]: " + histogram[i]);
+            }
+        }
+        out.println("processClassUsageCalls: " + getProcessClassUsageCalls());
+        out.println("processClassUsageNanos: " + getProcessClassUsageNanos());
+        out.println("storeClassCount: " + getStoreClassCount());
+        out.flush();
+        return summary.toString();
+    }
+
+    public void writeSummary(Path file) {
+        try {
+            Files.writeString(file, getSummary());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
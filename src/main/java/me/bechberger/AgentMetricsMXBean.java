@@ -0,0 +1,43 @@
+package me.bechberger;
+
+/**
+ * Metrics of the agent, registered as {@value AgentMetrics#OBJECT_NAME} with the {@code jmx=true} agent option
+ */
+public interface AgentMetricsMXBean {
+
+    /** classes whose static initializer has been instrumented */
+    long getTransformedClasses();
+
+    /** classes that did not need to be rewritten (JDK and agent classes, modules, already used classes) */
+    long getSkippedClasses();
+
+    /** classes that were not parsed, as the input already contains them as used ({@code incremental=true}) */
+    long getKnownUsedClasses();
+
+    /** classes that could not be rewritten because Javassist reported them as frozen */
+    long getFrozenClasses();
+
+    /** classes whose transformation failed with an exception */
+    long getFailedClasses();
+
+    /** size of all class files passed to the transformer */
+    long getBytesIn();
+
+    /** size of all class files returned by the transformer */
+    long getBytesOut();
+
+    long getTransformNanos();
+
+    /**
+     * Number of transformations per latency bucket, bucket {@code i} contains the latencies
+     * in {@code [2^(i-1), 2^i)} nanoseconds (bucket 0 only 0ns)
+     */
+    long[] getTransformLatencyHistogram();
+
+    long getProcessClassUsageCalls();
+
+    long getProcessClassUsageNanos();
+
+    /** number of classes in the store */
+    long getStoreClassCount();
+}
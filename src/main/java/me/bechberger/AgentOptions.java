@@ -1,23 +1,74 @@
 package me.bechberger;
 
+import me.bechberger.runtime.Journal;
+
 import java.nio.file.Path;
 import java.util.Optional;
 
 public class AgentOptions {
 
+    /**
+     * How the class loading and initialization is tracked
+     */
+    public enum Mode {
+        /** instrument the static initializers, precise */
+        INSTRUMENT,
+        /** no bytecode rewriting, JFR events and sampling of the loaded classes, see {@link JfrClassTracker} */
+        JFR
+    }
+
     private Optional<Path> input = Optional.empty();
     /**
      * default is stderr
      */
     private Optional<Path> output = Optional.empty();
+    /**
+     * journal of all state transitions, written while the program runs
+     */
+    private Optional<Path> journal = Optional.empty();
+    private long journalFlushInterval = Journal.DEFAULT_FLUSH_INTERVAL;
+    private Mode mode = Mode.INSTRUMENT;
+    private long samplingInterval = JfrClassTracker.DEFAULT_SAMPLING_INTERVAL;
+    private boolean jmx = false;
+    private boolean metrics = false;
+    private boolean incremental = false;
+    private boolean detach = false;
+    private Optional<Path> snapshot = Optional.empty();
+    private long snapshotInterval = 0;
+    private int keptSnapshots = StoreSnapshots.DEFAULT_KEPT_SNAPSHOTS;
 
     private void printHelp() {
         System.out.println("""
                 Usage: java -javaagent:dead-code.jar=options ...
+                   or: java -jar dead-code.jar STORE attach PID --options=options
                 Options:
                     help: Print this help message
                     input: the path to load the store with the metadata per class
                     output: the path to store the used and not used classes, default is stderr
+                            (or none if a journal is written)
+                    journal: the path of a journal to write all state changes to while the program runs,
+                             fold it into a store file via the compactJournal command
+                    journalFlushInterval: interval in milliseconds in which the journal is forced to disk,
+                                          default is 1000
+                    mode: instrument (default) adds a call to every static initializer,
+                          jfr does not modify any class, it records loaded classes via JFR
+                          and detects initialized classes by sampling, which is less precise
+                    samplingInterval: interval in milliseconds in which the loaded classes are sampled
+                                      in the jfr mode, default is 1000
+                    jmx: register the agent metrics as the MBean me.bechberger:type=DeadCodeAgent,
+                         true or false (default)
+                    metrics: write a summary of the agent metrics on shutdown next to the output file
+                             (output + ".metrics", stderr if there is no output), true or false (default)
+                    incremental: keep the states of the input (instead of reporting the usage of classes
+                                 not used before) and do not parse and rewrite the classes that it already
+                                 contains as used, true or false (default), requires an input
+                    snapshot: the path to write snapshots of the store to while the program runs,
+                              without blocking it, older snapshots are kept as snapshot.1, snapshot.2, ...
+                    snapshotInterval: interval in milliseconds in which snapshots are written,
+                                      default is 0 (only on request via the JMX operation writeSnapshot)
+                    keptSnapshots: number of kept snapshot files, default is 3
+                    detach: remove the agent that has been attached to a running JVM and write its output,
+                            true or false (default), all other options are taken from the attach
                 """);
     }
 
@@ -42,6 +93,23 @@ public class AgentOptions {
                 case "help" -> printHelp();
                 case "input" -> input = Optional.of(Path.of(value));
                 case "output" -> output = Optional.of(Path.of(value));
+                case "journal" -> journal = Optional.of(Path.of(value));
+                case "journalFlushInterval" -> journalFlushInterval = Long.parseLong(value);
+                case "mode" -> {
+                    switch (value) {
+                        case "instrument" -> mode = Mode.INSTRUMENT;
+                        case "jfr" -> mode = Mode.JFR;
+                        default -> optionsError("Unknown mode: " + value);
+                    }
+                }
+                case "samplingInterval" -> samplingInterval = Long.parseLong(value);
+                case "jmx" -> jmx = Boolean.parseBoolean(value);
+                case "metrics" -> metrics = Boolean.parseBoolean(value);
+                case "incremental" -> incremental = Boolean.parseBoolean(value);
+                case "detach" -> detach = Boolean.parseBoolean(value);
+                case "snapshot" -> snapshot = Optional.of(Path.of(value));
+                case "snapshotInterval" -> snapshotInterval = Long.parseLong(value);
+                case "keptSnapshots" -> keptSnapshots = Integer.parseInt(value);
                 default -> optionsError("Unknown argument: " + key);
             }
         }
@@ -49,6 +117,9 @@ public class AgentOptions {
 
     public AgentOptions(String agentArgs) {
         initOptions(agentArgs);
+        if (incremental && input.isEmpty()) {
+            optionsError("The incremental option requires an input");
+        }
     }
 
     public Optional<Path> getOutput() {
@@ -58,4 +129,48 @@ public class AgentOptions {
     public Optional<Path> getInput() {
         return input;
     }
+
+    public Optional<Path> getJournal() {
+        return journal;
+    }
+
+    public long getJournalFlushInterval() {
+        return journalFlushInterval;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isDetach() {
+        return detach;
+    }
+
+    public Optional<Path> getSnapshot() {
+        return snapshot;
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public int getKeptSnapshots() {
+        return keptSnapshots;
+    }
 }
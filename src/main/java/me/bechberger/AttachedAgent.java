@@ -0,0 +1,173 @@
+package me.bechberger;
+
+import me.bechberger.processor.Util;
+import me.bechberger.runtime.Store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The agent attached to a running JVM (see {@link Main#agentmain(String, Instrumentation)}), until it is detached
+ * <p>
+ * The classes loaded before attaching are recorded as loaded, or as used if they are already initialized.
+ * The classes that are not yet initialized are retransformed to instrument their static initializers,
+ * which is only possible for classes that already have one, the initialization of the others
+ * is checked again when detaching. Detaching removes the transformer and writes the store,
+ * the static initializers that are already instrumented still record their usage.
+ */
+class AttachedAgent {
+
+    private final Instrumentation inst;
+    private final AgentOptions options;
+    private final AgentMetrics metrics;
+    private final ClassTransformer transformer;
+    /** null if no snapshots are written */
+    private StoreSnapshots snapshots;
+    /** classes that were not initialized when attaching */
+    private final Set<Class<?>> uninitialized = Collections.newSetFromMap(new WeakHashMap<>());
+    private boolean attached = false;
+
+    AttachedAgent(Instrumentation inst, AgentOptions options) {
+        this.inst = inst;
+        this.options = options;
+        this.metrics = new AgentMetrics(Store.getInstance());
+        this.transformer = new ClassTransformer(metrics, options.isIncremental(), true);
+    }
+
+    synchronized void attach() {
+        if (options.isJmx()) {
+            metrics.registerMBean();
+        }
+        snapshots = Main.startSnapshots(options);
+        // load the classes that the transformer uses to skip classes, loading them later would transform them
+        // while they are being loaded
+        ExcludedClasses.isExcluded("");
+        AgentMetrics.Outcome.values();
+        // before obtaining the loaded classes, so that no class is missed
+        inst.addTransformer(transformer, true);
+        try {
+            recordLoadedClasses();
+        } catch (RuntimeException | LinkageError e) {
+            inst.removeTransformer(transformer);
+            stopSnapshotsAndMBeans();
+            throw e;
+        }
+        attached = true;
+        Store.getInstance().addShutdownTask(this::onShutdown);
+    }
+
+    private void recordLoadedClasses() {
+        Store store = Store.getInstance();
+        List<Class<?>> retransformed = new ArrayList<>();
+        for (Class<?> klass : inst.getAllLoadedClasses()) {
+            if (klass.isArray() || klass.isPrimitive() || klass.isHidden()) {
+                continue;
+            }
+            String className = klass.getName();
+            if (ExcludedClasses.isExcluded(className.replace('.', '/')) || isAgentClass(klass)) {
+                continue;
+            }
+            store.processClassLoad(className, Arrays.stream(klass.getInterfaces()).map(Class::getName)
+                    .toArray(String[]::new));
+            if (ClassInitialization.isInitialized(klass)) {
+                if (!Util.isIgnoredClassName(className)) {
+                    store.processClassUsage(className, klass);
+                }
+            } else {
+                uninitialized.add(klass);
+                if (inst.isModifiableClass(klass)) {
+                    retransformed.add(klass);
+                }
+            }
+        }
+        retransform(retransformed);
+    }
+
+    /**
+     * Classes of the agent JAR (like Javassist), which are loaded by attaching the agent,
+     * retransforming them could require them while they are transformed
+     */
+    private static boolean isAgentClass(Class<?> klass) {
+        CodeSource codeSource = klass.getProtectionDomain().getCodeSource();
+        return codeSource != null && codeSource.getLocation() != null &&
+                codeSource.getLocation().equals(AttachedAgent.class.getProtectionDomain().getCodeSource().getLocation());
+    }
+
+    private void retransform(List<Class<?>> classes) {
+        try {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError | InternalError e) {
+            // one by one, so that a single failing class does not prevent the others from being instrumented
+            for (Class<?> klass : classes) {
+                try {
+                    inst.retransformClasses(klass);
+                } catch (UnmodifiableClassException | RuntimeException | LinkageError | InternalError ignored) {
+                }
+            }
+        }
+    }
+
+    /** record the classes that have been initialized without an instrumented static initializer */
+    private void recordInitializedClasses() {
+        Store store = Store.getInstance();
+        for (Class<?> klass : uninitialized) {
+            if (ClassInitialization.isInitialized(klass) && !Util.isIgnoredClassName(klass.getName())) {
+                store.processClassUsage(klass.getName(), klass);
+            }
+        }
+        uninitialized.clear();
+    }
+
+    synchronized void detach() {
+        inst.removeTransformer(transformer);
+        attached = false;
+        recordInitializedClasses();
+        writeStore();
+        stopSnapshotsAndMBeans();
+    }
+
+    private void stopSnapshotsAndMBeans() {
+        if (snapshots != null) {
+            snapshots.stop();
+        }
+        if (options.isJmx()) {
+            metrics.unregisterMBean();
+            if (snapshots != null) {
+                snapshots.unregisterMBean();
+            }
+        }
+    }
+
+    private synchronized void onShutdown() {
+        if (attached) {
+            recordInitializedClasses();
+            writeStore();
+        }
+    }
+
+    /** write the store to the output, to stderr if there is neither an output nor a journal */
+    private void writeStore() {
+        if (options.getOutput().isPresent()) {
+            try (OutputStream out = Files.newOutputStream(options.getOutput().get())) {
+                Store.getInstance().writeTo(out);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else if (options.getJournal().isEmpty()) {
+            Store.getInstance().writeTo(System.err);
+        }
+        if (options.isMetrics()) {
+            Main.writeMetrics(options, metrics);
+        }
+    }
+}
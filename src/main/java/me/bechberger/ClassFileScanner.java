@@ -0,0 +1,214 @@
+package me.bechberger;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the header of a class file (constant pool, access flags, interfaces and the method table)
+ * directly from its bytes, to avoid creating a Javassist class for every loaded class
+ * <p>
+ * Only the interface names are materialized as strings, everything else is read on demand.
+ */
+public class ClassFileScanner {
+
+    public static final int ACC_INTERFACE = 0x0200;
+    public static final int ACC_MODULE = 0x8000;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+
+    private final byte[] bytes;
+    /** offsets of the constant pool entries (pointing to the tag) */
+    private final int[] cpOffsets;
+    private final int accessFlags;
+    private final int thisClassIndex;
+    /** 0 for java.lang.Object and modules */
+    private final int superClassIndex;
+    private final String[] interfaces;
+    private final boolean hasStaticInitializer;
+
+    /**
+     * @throws IllegalArgumentException if the class file is malformed
+     */
+    public ClassFileScanner(byte[] bytes) {
+        this.bytes = bytes;
+        try {
+            if (readInt(0) != 0xCAFEBABE) {
+                throw new IllegalArgumentException("Not a class file");
+            }
+            int cpCount = readUnsignedShort(8);
+            cpOffsets = new int[cpCount];
+            int pos = 10;
+            for (int i = 1; i < cpCount; i++) {
+                cpOffsets[i] = pos;
+                int tag = bytes[pos];
+                pos += switch (tag) {
+                    case CONSTANT_UTF8 -> 3 + readUnsignedShort(pos + 1);
+                    case CONSTANT_CLASS, 8, 16, 19, 20 -> 3; // class, string, method type, module, package
+                    case 15 -> 4; // method handle
+                    case 3, 4, 9, 10, 11, 12, 17, 18 -> 5; // int, float, refs, name and type, dynamic
+                    case CONSTANT_LONG, CONSTANT_DOUBLE -> 9;
+                    default -> throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+                };
+                if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+                    i++; // takes two slots
+                }
+            }
+            accessFlags = readUnsignedShort(pos);
+            thisClassIndex = checkClassIndex(readUnsignedShort(pos + 2));
+            int superIndex = readUnsignedShort(pos + 4);
+            superClassIndex = superIndex == 0 ? 0 : checkClassIndex(superIndex);
+            int interfaceCount = readUnsignedShort(pos + 6);
+            pos += 8;
+            interfaces = new String[interfaceCount];
+            for (int i = 0; i < interfaceCount; i++) {
+                interfaces[i] = className(checkClassIndex(readUnsignedShort(pos)));
+                pos += 2;
+            }
+            pos = skipMembers(pos); // fields
+            int methodCount = readUnsignedShort(pos);
+            pos += 2;
+            boolean foundStaticInitializer = false;
+            for (int i = 0; i < methodCount; i++) {
+                if (utf8Equals(readUnsignedShort(pos + 2), "<clinit>")) {
+                    foundStaticInitializer = true;
+                }
+                pos = skipAttributes(pos + 6);
+            }
+            hasStaticInitializer = foundStaticInitializer;
+            // the last attributes are skipped without reading behind them
+            if (skipAttributes(pos) != bytes.length) {
+                throw new IllegalArgumentException("Truncated class file or trailing bytes");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated class file", e);
+        }
+    }
+
+    /** check that the index refers to a class constant with a UTF-8 name, so its name can be read later */
+    private int checkClassIndex(int index) {
+        // the offset is 0 for the unusable second slot of long and double constants
+        if (index == 0 || index >= cpOffsets.length || cpOffsets[index] == 0 ||
+                bytes[cpOffsets[index]] != CONSTANT_CLASS) {
+            throw new IllegalArgumentException("Invalid class constant " + index);
+        }
+        int nameIndex = readUnsignedShort(cpOffsets[index] + 1);
+        if (nameIndex == 0 || nameIndex >= cpOffsets.length || cpOffsets[nameIndex] == 0 ||
+                bytes[cpOffsets[nameIndex]] != CONSTANT_UTF8) {
+            throw new IllegalArgumentException("Invalid class name constant " + nameIndex);
+        }
+        return index;
+    }
+
+    private int readInt(int pos) {
+        return ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16) | ((bytes[pos + 2] & 0xFF) << 8) |
+                (bytes[pos + 3] & 0xFF);
+    }
+
+    private int readUnsignedShort(int pos) {
+        return ((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF);
+    }
+
+    private int skipMembers(int pos) {
+        int count = readUnsignedShort(pos);
+        pos += 2;
+        for (int i = 0; i < count; i++) {
+            pos = skipAttributes(pos + 6);
+        }
+        return pos;
+    }
+
+    /** skip the attribute count and all attributes at pos */
+    private int skipAttributes(int pos) {
+        int count = readUnsignedShort(pos);
+        pos += 2;
+        for (int i = 0; i < count; i++) {
+            pos += 6 + readInt(pos + 2);
+        }
+        return pos;
+    }
+
+    private boolean utf8Equals(int index, String ascii) {
+        int pos = cpOffsets[index];
+        int length = readUnsignedShort(pos + 1);
+        if (length != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[pos + 3 + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** decode a modified UTF-8 constant */
+    private String utf8(int index) {
+        int pos = cpOffsets[index];
+        int length = readUnsignedShort(pos + 1);
+        int start = pos + 3;
+        int end = start + length;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        for (int i = start; i < end; ) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                i++;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+                i += 2;
+            } else {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F));
+                i += 3;
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /** name of the referenced class, with "." as separator */
+    private String className(int classIndex) {
+        return utf8(readUnsignedShort(cpOffsets[classIndex] + 1)).replace('/', '.');
+    }
+
+    public String getClassName() {
+        return className(thisClassIndex);
+    }
+
+    /** @return name of the super class, null for java.lang.Object and modules */
+    public String getSuperClassName() {
+        return superClassIndex == 0 ? null : className(superClassIndex);
+    }
+
+    /** names of the direct interfaces, with "." as separator */
+    public String[] getInterfaces() {
+        return interfaces;
+    }
+
+    public int getAccessFlags() {
+        return accessFlags;
+    }
+
+    public boolean isInterface() {
+        return (accessFlags & ACC_INTERFACE) != 0;
+    }
+
+    public boolean isModule() {
+        return (accessFlags & ACC_MODULE) != 0;
+    }
+
+    public boolean hasStaticInitializer() {
+        return hasStaticInitializer;
+    }
+}
@@ -0,0 +1,68 @@
+package me.bechberger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Obtains the initialization state of classes without initializing them, for the agent modes that do not
+ * see the static initializers of all classes
+ */
+final class ClassInitialization {
+
+    /** null if the initialization state of classes cannot be obtained */
+    private static final MethodHandle SHOULD_BE_INITIALIZED;
+    /** why the state cannot be obtained, null if it can */
+    private static final Exception UNAVAILABLE_CAUSE;
+
+    static {
+        MethodHandle handle = null;
+        Exception cause = null;
+        try {
+            handle = findShouldBeInitialized();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            cause = e;
+        }
+        SHOULD_BE_INITIALIZED = handle;
+        UNAVAILABLE_CAUSE = cause;
+    }
+
+    /**
+     * {@code sun.misc.Unsafe.shouldBeInitialized(Class)}, which checks the state without initializing the class
+     * (removed in JDK 22)
+     */
+    private static MethodHandle findShouldBeInitialized() throws ReflectiveOperationException {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field field = unsafeClass.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        return MethodHandles.lookup().findVirtual(unsafeClass, "shouldBeInitialized",
+                MethodType.methodType(boolean.class, Class.class)).bindTo(field.get(null));
+    }
+
+    /**
+     * Fail if the initialization state cannot be obtained on this JVM, the agent would otherwise
+     * record every class as unused
+     *
+     * @param mode the agent mode that needs the state, for the error message
+     */
+    static void checkAvailable(String mode) {
+        if (SHOULD_BE_INITIALIZED == null) {
+            throw new IllegalStateException("Cannot obtain the initialization state of classes, which " + mode +
+                    " requires (sun.misc.Unsafe.shouldBeInitialized is only available up to JDK 21), " +
+                    "use the instrumenting agent (-javaagent) instead", UNAVAILABLE_CAUSE);
+        }
+    }
+
+    static boolean isInitialized(Class<?> klass) {
+        checkAvailable("the agent");
+        try {
+            return !(boolean) SHOULD_BE_INITIALIZED.invokeExact(klass);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ClassInitialization() {
+    }
+}
@@ -0,0 +1,141 @@
+package me.bechberger;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.scopedpool.ScopedClassPool;
+import javassist.scopedpool.ScopedClassPoolRepositoryImpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of scoped class pools, one per class loader
+ * <p>
+ * The class loaders are weakly referenced, so pools of unloaded class loaders are dropped.
+ * Every pool only keeps a bounded number of resolved classes (LRU), classes created from
+ * class files have to be detached by the caller after use.
+ */
+public class ClassPoolCache {
+
+    private static final int DEFAULT_MAX_RESOLVED_CLASSES = 512;
+
+    private final int maxResolvedClasses;
+    private final Map<ClassLoader, CachingClassPool> pools = new WeakHashMap<>();
+    private CachingClassPool bootstrapPool;
+
+    private final LongAdder poolHits = new LongAdder();
+    private final LongAdder poolMisses = new LongAdder();
+    private final LongAdder classHits = new LongAdder();
+    private final LongAdder classMisses = new LongAdder();
+
+    public ClassPoolCache() {
+        this(DEFAULT_MAX_RESOLVED_CLASSES);
+    }
+
+    public ClassPoolCache(int maxResolvedClasses) {
+        this.maxResolvedClasses = maxResolvedClasses;
+    }
+
+    /**
+     * Scoped class pool that keeps the resolved (non-dynamic) classes in a bounded LRU cache
+     */
+    public class CachingClassPool extends ScopedClassPool {
+
+        private final Map<String, CtClass> resolved = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CtClass> eldest) {
+                return size() > maxResolvedClasses;
+            }
+        };
+
+        CachingClassPool(ClassLoader loader) {
+            super(loader, ClassPool.getDefault(), ScopedClassPoolRepositoryImpl.getInstance(), false);
+        }
+
+        @Override
+        protected void cacheCtClass(String classname, CtClass c, boolean dynamic) {
+            if (dynamic) {
+                super.cacheCtClass(classname, c, true);
+                return;
+            }
+            if (repository.isPrune()) {
+                c.prune();
+            }
+            synchronized (resolved) {
+                resolved.put(classname, c);
+            }
+        }
+
+        @Override
+        protected CtClass getCachedLocally(String classname) {
+            CtClass cached = super.getCachedLocally(classname);
+            if (cached != null) {
+                return cached;
+            }
+            synchronized (resolved) {
+                cached = resolved.get(classname);
+            }
+            (cached != null ? classHits : classMisses).increment();
+            return cached;
+        }
+
+        void removeResolved(String classname) {
+            synchronized (resolved) {
+                resolved.remove(classname);
+            }
+        }
+    }
+
+    /**
+     * Create a class from its class file in the pool of the loader,
+     * replacing a version of the class that was resolved while transforming other classes
+     */
+    public CtClass makeClass(ClassLoader loader, String className, byte[] classfile) throws IOException {
+        CachingClassPool pool = get(loader);
+        pool.removeResolved(className);
+        return pool.makeClass(new ByteArrayInputStream(classfile));
+    }
+
+    /** get the pool for the passed class loader, creating it if needed */
+    public synchronized CachingClassPool get(ClassLoader loader) {
+        CachingClassPool pool = loader == null ? bootstrapPool : pools.get(loader);
+        if (pool != null) {
+            poolHits.increment();
+            return pool;
+        }
+        poolMisses.increment();
+        pool = new CachingClassPool(loader);
+        if (loader == null) {
+            bootstrapPool = pool;
+        } else {
+            pools.put(loader, pool);
+        }
+        return pool;
+    }
+
+    /** number of cached pools, of class loaders that are not yet collected */
+    public synchronized int size() {
+        return pools.size() + (bootstrapPool == null ? 0 : 1);
+    }
+
+    public long getPoolHits() {
+        return poolHits.sum();
+    }
+
+    public long getPoolMisses() {
+        return poolMisses.sum();
+    }
+
+    /** lookups of resolved classes that were found in the LRU cache of a pool */
+    public long getClassHits() {
+        return classHits.sum();
+    }
+
+    public long getClassMisses() {
+        return classMisses.sum();
+    }
+}
@@ -1,69 +1,130 @@
 package me.bechberger;
 
 import javassist.*;
-import javassist.scopedpool.ScopedClassPoolFactoryImpl;
-import javassist.scopedpool.ScopedClassPoolRepositoryImpl;
+import me.bechberger.processor.ClinitTemplate;
+import me.bechberger.processor.Util;
 import me.bechberger.runtime.Store;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
-import java.nio.file.Files;
 import java.security.ProtectionDomain;
 
 /**
- * class transformer to add code in static initializer. Cannot be used for retransformations
+ * class transformer to add code in static initializer. Retransformations can only modify existing methods,
+ * so they are only instrumented when the agent is attached to a running JVM, and only if the class already has
+ * a static initializer
+ * <p>
+ * In the incremental mode, classes that are already used according to the store are neither parsed
+ * nor rewritten, so every profiling round that starts with the result of the previous one has less work.
  */
 public class ClassTransformer implements ClassFileTransformer {
-    private final ScopedClassPoolFactoryImpl scopedClassPoolFactory = new ScopedClassPoolFactoryImpl();
+    private final ClassPoolCache classPoolCache = new ClassPoolCache();
+    private final AgentMetrics metrics;
+    private final boolean incremental;
+    private final boolean retransform;
 
-    public ClassTransformer(AgentOptions options) {
-        // load the data on startup
-        options.getInput().ifPresent(f -> {
-            try {
-                Store.getInstance().load(f, true);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
-        // store the data on shutdown
-        Store.getInstance().setStoreStream(options.getOutput().map(f -> {
-            try {
-                return Files.newOutputStream(f);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }).orElse(System.err));
+    /**
+     * @param retransform instrument retransformed classes too, used when the agent is attached to a running JVM,
+     *                    only for classes that are not yet initialized
+     */
+    public ClassTransformer(AgentMetrics metrics, boolean incremental, boolean retransform) {
+        this.metrics = metrics;
+        this.incremental = incremental;
+        this.retransform = retransform;
+    }
+
+    public ClassTransformer(AgentMetrics metrics) {
+        this(metrics, false, false);
+    }
+
+    public ClassTransformer() {
+        this(new AgentMetrics(Store.getInstance()));
     }
 
     @Override
     public byte[] transform(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined,
                             ProtectionDomain protectionDomain, byte[] classfileBuffer) {
-        if (className.startsWith("me/bechberger/runtime/Store") || className.startsWith("me/bechberger" +
-                "/ClassTransformer") || className.startsWith("java/") || className.startsWith("jdk/internal") || className.startsWith("sun/")) {
+        long start = System.nanoTime();
+        AgentMetrics.Outcome outcome = AgentMetrics.Outcome.SKIPPED;
+        byte[] result = classfileBuffer;
+        try {
+            if (incremental && isKnownUsed(className, classBeingRedefined)) {
+                outcome = AgentMetrics.Outcome.KNOWN_USED;
+                return null;
+            }
+            byte[] transformed = transform(loader, className, classBeingRedefined, classfileBuffer);
+            if (transformed == null) {
+                outcome = AgentMetrics.Outcome.FROZEN;
+            } else if (transformed != classfileBuffer) {
+                outcome = AgentMetrics.Outcome.TRANSFORMED;
+                result = transformed;
+            }
+        } catch (CannotCompileException | IOException | RuntimeException e) {
+            e.printStackTrace();
+            outcome = AgentMetrics.Outcome.FAILED;
+        } finally {
+            metrics.recordTransform(outcome, System.nanoTime() - start, classfileBuffer.length, result.length);
+        }
+        // null tells the JVM that the class file is unchanged
+        return outcome == AgentMetrics.Outcome.TRANSFORMED ? result : null;
+    }
+
+    /**
+     * Whether the store (loaded from the input) already contains the class as used, so that neither
+     * its state nor its bytecode can change
+     */
+    private boolean isKnownUsed(String className, Class<?> classBeingRedefined) {
+        return (classBeingRedefined == null || retransform) && className != null &&
+                Store.getInstance().isClassUsed(formatClassName(className));
+    }
+
+    /**
+     * @return the transformed class file, the passed one if the class is not modified
+     * or null if the class is frozen
+     */
+    private byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                             byte[] classfileBuffer) throws CannotCompileException, IOException {
+        if (ExcludedClasses.isExcluded(className)) {
+            return classfileBuffer;
+        }
+        // only parse the class with Javassist if we have to modify it
+        ClassFileScanner scanner = new ClassFileScanner(classfileBuffer);
+        String cn = formatClassName(className);
+        boolean needsRewrite = needsRewrite(cn, scanner, classBeingRedefined);
+        Store.getInstance().processClassLoad(cn, scanner.getInterfaces());
+        if (!needsRewrite) {
             return classfileBuffer;
         }
+        CtClass cc = classPoolCache.makeClass(loader, cn, classfileBuffer);
         try {
-            ClassPool cp = scopedClassPoolFactory.create(loader, ClassPool.getDefault(),
-                    ScopedClassPoolRepositoryImpl.getInstance());
-            CtClass cc = cp.makeClass(new ByteArrayInputStream(classfileBuffer));
             if (cc.isFrozen()) {
-                return classfileBuffer;
+                return null;
             }
-            // classBeingRedefined is null if the class has not yet been defined
-            transform(className, cc);
+            transform(cn, cc);
             return cc.toBytecode();
-        } catch (CannotCompileException | IOException | RuntimeException | NotFoundException e) {
-            e.printStackTrace();
-            return classfileBuffer;
+        } finally {
+            // the pool is reused for the following classes of the loader
+            cc.detach();
         }
     }
 
-    private void transform(String className, CtClass cc) throws CannotCompileException, NotFoundException {
-        String cn = formatClassName(className);
-        Store.getInstance().processClassLoad(cn, cc.getClassFile().getInterfaces());
-        cc.makeClassInitializer().insertBefore(String.format("me.bechberger.runtime.Store.getInstance()" +
-                ".processClassUsage(\"%s\");", cn));
+    /**
+     * Static initializers are only instrumented for new classes (classBeingRedefined is null
+     * if the class has not yet been defined) and for retransformed classes that have one,
+     * whose usage is not already known
+     */
+    private boolean needsRewrite(String className, ClassFileScanner scanner, Class<?> classBeingRedefined) {
+        return (classBeingRedefined == null || retransform && scanner.hasStaticInitializer()) &&
+                !scanner.isModule() && !Util.isIgnoredClassName(className) &&
+                !Store.getInstance().isClassUsed(className);
+    }
+
+    private void transform(String className, CtClass cc) throws CannotCompileException {
+        ClinitTemplate.PROCESS_CLASS_USAGE.insertInto(cc, className);
+    }
+
+    public ClassPoolCache getClassPoolCache() {
+        return classPoolCache;
     }
 
     private String formatClassName(String className) {
@@ -0,0 +1,37 @@
+package me.bechberger;
+
+/**
+ * Classes that are never tracked by the agent
+ */
+final class ExcludedClasses {
+
+    /**
+     * packages of the agent and its runtime (without their sub packages), their classes are used while
+     * transforming and by the hooks, the benchmark applications in {@code me/bechberger/benchmarks} are tracked
+     */
+    private static final String[] EXCLUDED_PACKAGES = {"me/bechberger/", "me/bechberger/runtime/",
+            "me/bechberger/processor/"};
+
+    /** classes of the JDK */
+    private static final String[] EXCLUDED_PREFIXES = {"java/", "jdk/internal", "sun/"};
+
+    /**
+     * @param className internal name, like {@code java/lang/String}
+     */
+    static boolean isExcluded(String className) {
+        for (String excludedPackage : EXCLUDED_PACKAGES) {
+            if (className.startsWith(excludedPackage) && className.indexOf('/', excludedPackage.length()) == -1) {
+                return true;
+            }
+        }
+        for (String prefix : EXCLUDED_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ExcludedClasses() {
+    }
+}
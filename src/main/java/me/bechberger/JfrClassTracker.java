@@ -0,0 +1,143 @@
+package me.bechberger;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.EventStream;
+import me.bechberger.processor.Util;
+import me.bechberger.runtime.Store;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Tracks the loading and initialization of classes without modifying any class,
+ * an alternative to the {@link ClassTransformer} with less startup overhead
+ * <p>
+ * Loaded classes are taken from the {@code jdk.ClassLoad} events of a JFR recording, streamed from the repository.
+ * JFR has no event for class initialization, so the initialized (used) classes are found by sampling
+ * {@link Instrumentation#getAllLoadedClasses()} periodically and on shutdown, before the store is written.
+ * This also records loaded classes whose JFR events have not yet arrived. See the README for the differences
+ * in precision.
+ */
+public class JfrClassTracker {
+
+    public static final long DEFAULT_SAMPLING_INTERVAL = 1000;
+
+    private static final String CLASS_LOAD_EVENT = "jdk.ClassLoad";
+    /** the JFR classes that are loaded while streaming the events */
+    private static final String JFR_PREFIX = "jdk.jfr.";
+
+    private final Instrumentation inst;
+    private final long samplingInterval;
+    /** classes loaded before the tracker started and classes that are known to be used */
+    private final Set<Class<?>> done = Collections.newSetFromMap(new WeakHashMap<>());
+    /** both null if JFR is not available */
+    private Recording recording;
+    private EventStream stream;
+
+    public JfrClassTracker(Instrumentation inst, long samplingInterval) {
+        this.inst = inst;
+        this.samplingInterval = samplingInterval;
+    }
+
+    public void start() {
+        try {
+            // start the recording synchronously, before the first application class is loaded
+            recording = new Recording();
+            recording.enable(CLASS_LOAD_EVENT).withoutThreshold();
+            recording.start();
+            stream = EventStream.openRepository();
+            stream.setStartTime(recording.getStartTime());
+            stream.onEvent(CLASS_LOAD_EVENT, this::onClassLoad);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not start JFR, only sampling the loaded classes: " + e.getMessage());
+            if (recording != null) {
+                recording.close();
+            }
+            recording = null;
+            stream = null;
+        }
+        // like the transformer, which only sees classes loaded after it has been registered,
+        // this includes the classes loaded for setting up JFR
+        synchronized (this) {
+            for (Class<?> klass : inst.getAllLoadedClasses()) {
+                done.add(klass);
+            }
+        }
+        if (stream != null) {
+            // EventStream.startAsync would use a non-daemon thread, which keeps the JVM alive
+            Thread streamThread = new Thread(stream::start, "dead-code-jfr");
+            streamThread.setDaemon(true);
+            streamThread.start();
+        }
+        Thread sampler = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(samplingInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sample();
+            }
+        }, "dead-code-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        Store.getInstance().addShutdownTask(() -> {
+            if (stream != null) {
+                stream.close();
+                recording.close();
+            }
+            sample();
+        });
+    }
+
+    private static boolean isIgnored(String className) {
+        return className.startsWith(JFR_PREFIX) || ExcludedClasses.isExcluded(className.replace('.', '/'));
+    }
+
+    private synchronized void onClassLoad(RecordedEvent event) {
+        RecordedClass loadedClass = event.getClass("loadedClass");
+        if (loadedClass == null) {
+            return;
+        }
+        String className = loadedClass.getName();
+        // events might arrive after a sample already recorded the class
+        if (isHidden(loadedClass) || isIgnored(className) || Store.getInstance().isClassLoaded(className)) {
+            return;
+        }
+        // the interfaces have their own events
+        Store.getInstance().processClassLoad(className, new String[0]);
+    }
+
+    private static boolean isHidden(RecordedClass recordedClass) {
+        return recordedClass.hasField("hidden") && recordedClass.getBoolean("hidden");
+    }
+
+    /** record all loaded classes that are not yet known and all newly initialized classes */
+    synchronized void sample() {
+        Store store = Store.getInstance();
+        for (Class<?> klass : inst.getAllLoadedClasses()) {
+            if (klass.isArray() || klass.isPrimitive() || klass.isHidden() || done.contains(klass)) {
+                continue;
+            }
+            String className = klass.getName();
+            if (isIgnored(className)) {
+                done.add(klass);
+                continue;
+            }
+            if (!store.isClassLoaded(className)) {
+                store.processClassLoad(className, Arrays.stream(klass.getInterfaces()).map(Class::getName)
+                        .toArray(String[]::new));
+            }
+            if (ClassInitialization.isInitialized(klass) && !Util.isIgnoredClassName(className)) {
+                store.processClassUsage(className, klass);
+                done.add(klass);
+            }
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package me.bechberger;
 
 import me.bechberger.processor.Processor;
-import picocli.CommandLine;
+import me.bechberger.runtime.Journal;
+import me.bechberger.runtime.Store;
 
 import java.io.*;
 import java.lang.instrument.Instrumentation;
@@ -16,8 +17,20 @@ import java.util.jar.JarFile;
  */
 public class Main {
 
+    /** whether the agent has been started with the JVM via {@link #premain(String, Instrumentation)} */
+    private static boolean startedWithJVM = false;
+    /** whether the runtime has been added and the store loaded by a former attach */
+    private static boolean attachedBefore = false;
+    /** the agent attached via {@link #agentmain(String, Instrumentation)}, null if it is not attached */
+    private static AttachedAgent attachedAgent;
+
     public static void premain(String agentArgs, Instrumentation inst) {
+        startedWithJVM = true;
         AgentOptions options = new AgentOptions(agentArgs);
+        if (options.getMode() == AgentOptions.Mode.JFR) {
+            // before the output is cleared
+            ClassInitialization.checkAvailable("mode=jfr");
+        }
         // clear the file
         options.getOutput().ifPresent(out -> {
             try {
@@ -27,16 +40,127 @@ public class Main {
                 throw new RuntimeException(e);
             }
         });
+        appendRuntime(inst);
+        initStore(options);
+        AgentMetrics metrics = new AgentMetrics(Store.getInstance());
+        if (options.isJmx()) {
+            // before the transformer is added, so that the JMX classes are not recorded
+            metrics.registerMBean();
+        }
+        startSnapshots(options);
+        switch (options.getMode()) {
+            case INSTRUMENT -> inst.addTransformer(new ClassTransformer(metrics, options.isIncremental(), false), true);
+            case JFR -> new JfrClassTracker(inst, options.getSamplingInterval()).start();
+        }
+        if (options.isMetrics()) {
+            // runs after the shutdown tasks of the JFR mode
+            Store.getInstance().addShutdownTask(() -> writeMetrics(options, metrics));
+        }
+    }
+
+    /**
+     * Attach the agent to a running JVM (see the attach command), or detach it with the {@code detach=true} option
+     * <p>
+     * The store keeps its data between consecutive attaches, the input and the journal are only
+     * opened by the first one.
+     */
+    public static synchronized void agentmain(String agentArgs, Instrumentation inst) {
+        AgentOptions options = new AgentOptions(agentArgs);
+        if (options.isDetach()) {
+            if (attachedAgent == null) {
+                throw new IllegalStateException("The dead-code agent is not attached");
+            }
+            attachedAgent.detach();
+            attachedAgent = null;
+            return;
+        }
+        if (attachedAgent != null || startedWithJVM) {
+            throw new IllegalStateException("The dead-code agent is already running");
+        }
+        if (options.getMode() != AgentOptions.Mode.INSTRUMENT) {
+            throw new IllegalArgumentException("Only the instrument mode is supported when attaching");
+        }
+        ClassInitialization.checkAvailable("attaching the agent");
+        if (!attachedBefore) {
+            attachedBefore = true;
+            appendRuntime(inst);
+            loadStore(options);
+        }
+        AttachedAgent agent = new AttachedAgent(inst, options);
+        agent.attach();
+        attachedAgent = agent;
+    }
+
+    private static void appendRuntime(Instrumentation inst) {
         try {
             inst.appendToBootstrapClassLoaderSearch(new JarFile(getExtractedJARPath().toFile()));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        inst.addTransformer(new ClassTransformer(options), true);
+    }
+
+    /**
+     * Start writing snapshots of the store, if a snapshot file is configured
+     *
+     * @return null if there is no snapshot file
+     */
+    static StoreSnapshots startSnapshots(AgentOptions options) {
+        if (options.getSnapshot().isEmpty()) {
+            return null;
+        }
+        StoreSnapshots snapshots = new StoreSnapshots(options.getSnapshot().get(), options.getKeptSnapshots());
+        if (options.isJmx()) {
+            snapshots.registerMBean();
+        }
+        if (options.getSnapshotInterval() > 0) {
+            snapshots.start(options.getSnapshotInterval());
+        }
+        return snapshots;
+    }
+
+    static void writeMetrics(AgentOptions options, AgentMetrics metrics) {
+        if (options.getOutput().isPresent()) {
+            metrics.writeSummary(Path.of(options.getOutput().get() + ".metrics"));
+        } else {
+            System.err.print(metrics.getSummary());
+        }
+    }
+
+    private static void initStore(AgentOptions options) {
+        loadStore(options);
+        // store the data on shutdown, the journal replaces the default output
+        if (options.getOutput().isPresent() || options.getJournal().isEmpty()) {
+            Store.getInstance().setStoreStream(options.getOutput().map(f -> {
+                try {
+                    return Files.newOutputStream(f);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).orElse(System.err));
+        }
+    }
+
+    /** load the input and open the journal */
+    private static void loadStore(AgentOptions options) {
+        // load the data on startup, the incremental mode keeps the states of the input
+        options.getInput().ifPresent(f -> {
+            try {
+                Store.getInstance().load(f, !options.isIncremental());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        options.getJournal().ifPresent(f -> {
+            try {
+                Store.getInstance().setJournal(new Journal(f, options.getJournalFlushInterval()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
     }
 
     public static void main(String[] args) {
-        System.exit(new CommandLine(new Processor()).execute(args));
+        System.exit(Processor.execute(args));
     }
 
     private static Path getExtractedJARPath() throws IOException {
@@ -0,0 +1,159 @@
+package me.bechberger;
+
+import me.bechberger.runtime.Store;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes snapshots of the store while the program runs, periodically and on request via JMX,
+ * for programs that never shut down
+ * <p>
+ * The files rotate: the newest snapshot is the passed file, the older ones get the suffixes {@code .1}, {@code .2},
+ * ... Every snapshot is written to a temporary file first and then renamed, the former newest one is linked
+ * (or copied) to {@code .1} before, so the file always exists and readers never see a partial file.
+ * Snapshots don't block the threads that update the store, see {@link Store#writeSnapshotTo(OutputStream)}.
+ */
+public class StoreSnapshots implements StoreSnapshotsMXBean {
+
+    public static final String OBJECT_NAME = "me.bechberger:type=DeadCodeSnapshots";
+
+    public static final int DEFAULT_KEPT_SNAPSHOTS = 3;
+
+    private final Path file;
+    /** number of kept files, including the newest one */
+    private final int keptSnapshots;
+    private volatile long snapshotCount = 0;
+    private volatile long lastSnapshotNanos = 0;
+    private Thread thread;
+
+    public StoreSnapshots(Path file, int keptSnapshots) {
+        this.file = file.toAbsolutePath();
+        this.keptSnapshots = Math.max(keptSnapshots, 1);
+    }
+
+    /** write snapshots periodically in a daemon thread */
+    public synchronized void start(long interval) {
+        thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    write();
+                } catch (RuntimeException e) {
+                    System.err.println("Could not write a snapshot of the store: " + e.getMessage());
+                }
+            }
+        }, "dead-code-snapshots");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Write a snapshot and rotate the former ones
+     *
+     * @return path of the snapshot
+     */
+    public synchronized Path write() {
+        long start = System.nanoTime();
+        Path temporary = null;
+        try {
+            // unique, so that agents writing to the same path do not overwrite each other's temporary file
+            temporary = temporarySibling();
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+                Store.getInstance().writeSnapshotTo(out);
+            }
+            for (int i = keptSnapshots - 1; i > 1; i--) {
+                Path older = sibling("." + (i - 1));
+                if (Files.exists(older)) {
+                    Files.move(older, sibling("." + i), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (keptSnapshots > 1 && Files.exists(file)) {
+                // the newest snapshot stays in place until the new one replaces it
+                Path link = temporarySibling();
+                try {
+                    Files.createLink(link, file);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(file, link);
+                }
+                Files.move(link, sibling(".1"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + temporary + ": " + e.getMessage());
+                }
+            }
+        }
+        snapshotCount++;
+        lastSnapshotNanos = System.nanoTime() - start;
+        return file;
+    }
+
+    private Path sibling(String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    /** unique name of a file that does not exist yet, with the permissions of a normal file when it is created */
+    private Path temporarySibling() {
+        return sibling("." + ProcessHandle.current().pid() + "-" +
+                Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String writeSnapshot() {
+        return write().toString();
+    }
+
+    @Override
+    public long getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    @Override
+    public long getLastSnapshotNanos() {
+        return lastSnapshotNanos;
+    }
+}
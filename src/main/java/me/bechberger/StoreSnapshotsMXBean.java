@@ -0,0 +1,20 @@
+package me.bechberger;
+
+/**
+ * Snapshots of the store, registered as {@value StoreSnapshots#OBJECT_NAME} with the {@code jmx=true} agent option
+ */
+public interface StoreSnapshotsMXBean {
+
+    /**
+     * Write a snapshot of the store now
+     *
+     * @return path of the written file
+     */
+    String writeSnapshot();
+
+    /** number of snapshots written since the agent started */
+    long getSnapshotCount();
+
+    /** duration of the last snapshot, 0 if there is none */
+    long getLastSnapshotNanos();
+}
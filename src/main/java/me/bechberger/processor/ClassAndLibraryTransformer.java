@@ -4,25 +4,30 @@ import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.NotFoundException;
+import javassist.bytecode.ClassFile;
 import javassist.scopedpool.ScopedClassPoolFactoryImpl;
 import javassist.scopedpool.ScopedClassPoolRepositoryImpl;
+import me.bechberger.runtime.ClassIdTable;
 import me.bechberger.runtime.Store;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.function.*;
 import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.zip.CRC32;
+import java.util.jar.JarInputStream;
 
-import static me.bechberger.processor.Util.classNameForJarEntry;
+import static me.bechberger.processor.Util.classNameForEntryName;
 import static me.bechberger.processor.Util.isIgnoredClassName;
 
 /**
@@ -30,22 +35,37 @@ import static me.bechberger.processor.Util.isIgnoredClassName;
  */
 public class ClassAndLibraryTransformer {
 
+    /** null for nested JARs */
     private final Path sourceFile;
+    /** view on a nested JAR, null for the outer JAR */
+    private ZipView sourceView;
     private Predicate<String> isLibraryIncluded;
     private Predicate<String> isClassIncluded;
+    /** a library is only kept if it contains a class matching this predicate, might be null */
+    private Predicate<String> isClassUsed;
+    /** answers whether a library contains a used class without extracting it, might be null */
+    private JarIndex index;
+    /** set if a nested library is kept because it contains a used class */
+    private volatile boolean containsUsedLibrary = false;
     /** transforms the class file, might be null */
     private BiConsumer<ClassPool, CtClass> classTransformer;
 
     record JarEntryPair(String name, InputStream data) {
-        static JarEntryPair of(Class<?> klass, String path) throws IOException {
-            return new JarEntryPair(path, klass.getClassLoader().getResourceAsStream(path));
-        }
     }
 
     private Supplier<List<JarEntryPair>> miscFilesSupplier = List::of;
 
     private final OutputStream target;
 
+    private int parallelism = 1;
+    /** pool of the outermost transformer, shared with the nested ones, null if sequential */
+    private ForkJoinPool pool;
+    /**
+     * Consumes the messages about skipped classes and libraries, nested transformers collect their messages,
+     * so they are printed in the original entry order
+     */
+    private Consumer<String> log = System.out::println;
+
     private ClassAndLibraryTransformer(Path sourceFile, Predicate<String> isLibraryIncluded,
                                        Predicate<String> isClassIncluded,
                                        BiConsumer<ClassPool, CtClass> classTransformer, OutputStream target) {
@@ -70,6 +90,21 @@ public class ClassAndLibraryTransformer {
         return this;
     }
 
+    /**
+     * Only keep the libraries that contain a class matching the predicate (directly or in one of their
+     * nested libraries), decided while the libraries are processed, so the JAR is only read once
+     */
+    public ClassAndLibraryTransformer withUsedLibrariesOnly(Predicate<String> isClassUsed) {
+        this.isClassUsed = isClassUsed;
+        return this;
+    }
+
+    /** decide the usage of already indexed libraries from the index */
+    public ClassAndLibraryTransformer withIndex(JarIndex index) {
+        this.index = index;
+        return this;
+    }
+
     public ClassAndLibraryTransformer withClassTransformer(BiConsumer<ClassPool, CtClass> classTransformer) {
         this.classTransformer = classTransformer;
         return this;
@@ -80,110 +115,238 @@ public class ClassAndLibraryTransformer {
         return this;
     }
 
+    /** consumer of the messages about skipped classes and libraries, called on the thread calling {@link #process()} */
+    public ClassAndLibraryTransformer withLog(Consumer<String> log) {
+        this.log = log;
+        return this;
+    }
+
+    /**
+     * Transform classes and nested libraries on {@code parallelism} worker threads,
+     * the entries are still written in their original order by the calling thread
+     */
+    public ClassAndLibraryTransformer withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
     public void process() throws IOException {
-        process(true);
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+            try {
+                process(true);
+            } finally {
+                pool.shutdown();
+                pool = null;
+            }
+        } else {
+            process(true);
+        }
+    }
+
+    /** writes a processed entry, called in the original order of the entries */
+    @FunctionalInterface
+    private interface EntryWriter {
+        void write(ZipWriter zipWriter) throws IOException;
     }
 
     private void process(boolean outer) throws IOException {
-        try (JarOutputStream jarOutputStream = new JarOutputStream(target); JarFile jarFile =
-                new JarFile(sourceFile.toFile())) {
-            jarFile.stream().forEach(jarEntry -> {
-                try {
-                    String name = jarEntry.getName();
-                    if (name.endsWith(".class")) {
-                        processClassEntry(jarOutputStream, jarFile, jarEntry);
-                    } else if (name.endsWith(".jar")) {
-                        processJAREntry(jarOutputStream, jarFile, jarEntry);
-                    } else {
-                        processMiscEntry(jarOutputStream, jarFile, jarEntry);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        try (ZipWriter zipWriter = new ZipWriter(target); ZipView view = sourceView != null ? sourceView :
+                ZipView.open(sourceFile)) {
+            // bounded window of entries that are processed but not yet written
+            Deque<ForkJoinTask<EntryWriter>> pending = new ArrayDeque<>();
+            int maxPending = pool == null ? 0 : parallelism * 4;
+            for (ZipView.Entry entry : view.entries()) {
+                String name = entry.name();
+                if (name.endsWith(".class")) {
+                    pending.add(schedule(() -> processClassEntry(view, entry)));
+                } else if (name.endsWith(".jar")) {
+                    pending.add(schedule(() -> processJAREntry(view, entry)));
+                } else {
+                    // copied by the writing thread
+                    ForkJoinTask<EntryWriter> task = ForkJoinTask.adapt(() -> processMiscEntry(view, entry));
+                    task.invoke();
+                    pending.add(task);
                 }
-            });
+                while (pending.size() > maxPending) {
+                    write(pending.poll(), zipWriter);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), zipWriter);
+            }
             if (outer) {
+                int dosTime = ZipWriter.dosTime(System.currentTimeMillis());
                 for (JarEntryPair miscFile : miscFilesSupplier.get()) {
-                    JarEntry jarEntry = new JarEntry(miscFile.name);
-                    jarOutputStream.putNextEntry(jarEntry);
-                    miscFile.data.transferTo(jarOutputStream);
+                    zipWriter.write(ZipWriter.prepare(miscFile.name, dosTime, miscFile.data.readAllBytes()));
                 }
             }
         }
     }
 
-    private static void processMiscEntry(JarOutputStream jarOutputStream, JarFile jarFile, JarEntry jarEntry) throws IOException {
-        jarOutputStream.putNextEntry(jarEntry);
-        jarFile.getInputStream(jarEntry).transferTo(jarOutputStream);
+    /** run the task on the pool if there is one, else directly */
+    private ForkJoinTask<EntryWriter> schedule(Callable<EntryWriter> callable) {
+        ForkJoinTask<EntryWriter> task = ForkJoinTask.adapt(callable);
+        if (pool == null) {
+            task.invoke();
+        } else if (Thread.currentThread() instanceof ForkJoinWorkerThread worker && worker.getPool() == pool) {
+            // nested library, the joining worker helps with its entries
+            task.fork();
+        } else {
+            pool.execute(task);
+        }
+        return task;
+    }
+
+    private static void write(ForkJoinTask<EntryWriter> task, ZipWriter zipWriter) throws IOException {
+        task.join().write(zipWriter);
+    }
+
+    private static EntryWriter processMiscEntry(ZipView view, ZipView.Entry entry) {
+        return zipWriter -> zipWriter.copy(view, entry);
     }
 
-    private void processClassEntry(JarOutputStream jarOutputStream, JarFile jarFile, JarEntry jarEntry) throws IOException {
-        String className = classNameForJarEntry(jarEntry);
+    /** unmodified classes are copied without decompressing them */
+    private EntryWriter processClassEntry(ZipView view, ZipView.Entry entry) throws IOException {
+        String className = classNameForEntryName(entry.name());
         if (isClassIncluded.test(className) || isIgnoredClassName(className)) {
-            jarOutputStream.putNextEntry(jarEntry);
-            InputStream classStream = jarFile.getInputStream(jarEntry);
-            if (classTransformer != null && !isIgnoredClassName(className)) {
-                classStream = transform(classStream);
+            if (classTransformer == null || isIgnoredClassName(className)) {
+                return zipWriter -> zipWriter.copy(view, entry);
             }
-            classStream.transferTo(jarOutputStream);
-        } else {
-            System.out.println("Skipping class " + className);
+            byte[] classBytes;
+            try (InputStream in = view.inputStream(entry)) {
+                classBytes = in.readAllBytes();
+            }
+            byte[] transformed = transform(classBytes);
+            if (transformed == classBytes) {
+                return zipWriter -> zipWriter.copy(view, entry);
+            }
+            ZipWriter.PreparedEntry prepared = ZipWriter.prepare(entry.name(), entry.dosTime(), transformed);
+            return zipWriter -> zipWriter.write(prepared);
         }
+        return zipWriter -> log.accept("Skipping class " + className);
     }
 
     private final ScopedClassPoolFactoryImpl scopedClassPoolFactory = new ScopedClassPoolFactoryImpl();
 
 
-    private InputStream transform(InputStream classStream) throws IOException {
-        byte[] cl = classStream.readAllBytes();
+    /**
+     * @return the passed array if the transformer did not modify the class
+     */
+    private byte[] transform(byte[] cl) {
         assert classTransformer != null;
         try {
             ClassPool cp = scopedClassPoolFactory.create(ClassPool.getDefault(),
                     ScopedClassPoolRepositoryImpl.getInstance());
             CtClass cc = cp.makeClass(new ByteArrayInputStream(cl));
             if (cc.isFrozen()) {
-                return new ByteArrayInputStream(cc.toBytecode());
+                return cc.toBytecode();
             }
             // classBeingRedefined is null if the class has not yet been defined
             classTransformer.accept(cp, cc);
-            return new ByteArrayInputStream(cc.toBytecode());
+            if (!cc.isModified()) {
+                return cl;
+            }
+            return cc.toBytecode();
         } catch (CannotCompileException | IOException | RuntimeException e) {
             e.printStackTrace();
-            return new ByteArrayInputStream(cl);
+            return cl;
         }
     }
 
 
-    private void processJAREntry(JarOutputStream jarOutputStream, JarFile jarFile, JarEntry jarEntry) throws IOException {
-        String name = jarEntry.getName();
+    private EntryWriter processJAREntry(ZipView view, ZipView.Entry entry) throws IOException {
+        String name = entry.name();
         String libraryName = Util.libraryNameForPath(name);
         if (!isLibraryIncluded.test(libraryName)) {
-            System.out.println("Skipping library " + libraryName);
-            return;
+            return zipWriter -> log.accept("Skipping library " + libraryName);
+        }
+        Boolean indexedUsage = isClassUsed == null || index == null ? null :
+                index.containsMatchingClass(JarIndex.key(view, entry), entry.isStored() ? view.nested(entry) : null,
+                        isClassUsed);
+        if (Boolean.FALSE.equals(indexedUsage)) {
+            return zipWriter -> log.accept("Skipping library " + libraryName);
+        }
+        // STORED JARs are read in place, compressed ones have to be inflated first
+        SpillBuffer inflated = null;
+        SpillBuffer newJar = new SpillBuffer();
+        try {
+            ZipView nestedView;
+            if (entry.isStored()) {
+                nestedView = view.nested(entry);
+            } else {
+                inflated = new SpillBuffer();
+                try (InputStream in = view.inputStream(entry); OutputStream out = inflated) {
+                    in.transferTo(out);
+                }
+                nestedView = inflated.openView();
+            }
+            ClassAndLibraryTransformer nestedJarProcessor;
+            List<String> nestedLog = new ArrayList<>();
+            try (ZipView library = nestedView) {
+                LibraryContent content = isClassUsed == null ? null :
+                        indexedUsage != null ? new LibraryContent(true, true) : scanLibrary(library);
+                if (content != null && !content.containsUsedClass && !content.containsLibraries) {
+                    return zipWriter -> log.accept("Skipping library " + libraryName);
+                }
+                // the nested JAR is rebuilt in the buffer, which computes its CRC and size
+                nestedJarProcessor = new ClassAndLibraryTransformer(null, isLibraryIncluded, isClassIncluded,
+                        classTransformer, newJar);
+                nestedJarProcessor.sourceView = library;
+                nestedJarProcessor.isClassUsed = isClassUsed;
+                nestedJarProcessor.index = index;
+                nestedJarProcessor.parallelism = parallelism;
+                nestedJarProcessor.pool = pool;
+                nestedJarProcessor.log = nestedLog::add;
+                nestedJarProcessor.process(false);
+                if (content != null) {
+                    if (!content.containsUsedClass && !nestedJarProcessor.containsUsedLibrary) {
+                        return zipWriter -> log.accept("Skipping library " + libraryName);
+                    }
+                    containsUsedLibrary = true;
+                }
+            }
+            EntryWriter writer = writeNestedJar(entry, newJar, nestedLog);
+            newJar = null; // deleted by the writer
+            return writer;
+        } finally {
+            if (inflated != null) {
+                inflated.delete();
+            }
+            if (newJar != null) {
+                newJar.delete();
+            }
         }
-        Path tempFile = Files.createTempFile("nested-jar", ".jar");
-        tempFile.toFile().deleteOnExit();
-        // copy entry over
-        InputStream in = jarFile.getInputStream(jarEntry);
-        Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
-        ClassAndLibraryTransformer nestedJarProcessor;
-        // create new JAR file
-        // nesting JAR files is too cumbersome
-        Path newJarFile = Files.createTempFile("new-jar", ".jar");
-        newJarFile.toFile().deleteOnExit();
-        try (OutputStream newOutputStream = Files.newOutputStream(newJarFile)) {
-            nestedJarProcessor = new ClassAndLibraryTransformer(tempFile, isLibraryIncluded, isClassIncluded, classTransformer,
-                    newOutputStream);
-            nestedJarProcessor.process(false);
+    }
+
+    private record LibraryContent(boolean containsUsedClass, boolean containsLibraries) {
+    }
+
+    /** check the entry names of the library for used classes (not descending into nested libraries) */
+    private LibraryContent scanLibrary(ZipView library) {
+        boolean containsLibraries = false;
+        for (ZipView.Entry entry : library.entries()) {
+            if (entry.name().endsWith(".class")) {
+                if (isClassUsed.test(classNameForEntryName(entry.name()))) {
+                    return new LibraryContent(true, false);
+                }
+            } else if (entry.name().endsWith(".jar")) {
+                containsLibraries = true;
+            }
         }
+        return new LibraryContent(false, containsLibraries);
+    }
+
+    private EntryWriter writeNestedJar(ZipView.Entry entry, SpillBuffer newJar, List<String> nestedLog) {
         // see https://docs.spring.io/spring-boot/docs/current/reference/html/executable-jar.html
-        JarEntry newJarEntry = new JarEntry(jarEntry.getName());
-        newJarEntry.setMethod(JarEntry.STORED);
-        newJarEntry.setCompressedSize(Files.size(newJarFile));
-        CRC32 crc32 = new CRC32();
-        crc32.update(Files.readAllBytes(newJarFile));
-        newJarEntry.setCrc(crc32.getValue());
-        jarOutputStream.putNextEntry(newJarEntry);
-        Files.copy(newJarFile, jarOutputStream);
+        return zipWriter -> {
+            nestedLog.forEach(log);
+            try (InputStream in = newJar.inputStream()) {
+                zipWriter.writeStored(entry.name(), entry.dosTime(), newJar.getCrc(), newJar.getSize(), in);
+            } finally {
+                newJar.delete();
+            }
+        };
     }
 
     public static BiConsumer<ClassPool, CtClass> createUnusedClassTransformer(Predicate<String> isClassUsed, Function<String, String> messageSupplier, boolean exit) {
@@ -194,36 +357,83 @@ public class ClassAndLibraryTransformer {
             }
             try {
                 String message = messageSupplier.apply(className);
-                cc.makeClassInitializer().insertBefore(
-                        String.format("System.err.println(\"Class %s is used which is not allowed%s\"); if (%s) { System.exit(1); }", className, message.isBlank() ? "" : (": " + message), exit));
+                (exit ? ClinitTemplate.REPORT_AND_EXIT : ClinitTemplate.REPORT).insertInto(cc,
+                        "Class " + className + " is used which is not allowed" + (message.isBlank() ? "" : (": " + message)));
             } catch (CannotCompileException e) {
                 throw new RuntimeException(e);
             }
         };
     }
 
-    public static BiConsumer<ClassPool, CtClass> createClassInstrumenter(Path output) {
+    /**
+     * Instrument the static initializers to pass the id of the class to the store,
+     * classes without id use the slower name-based hook
+     */
+    public static BiConsumer<ClassPool, CtClass> createClassInstrumenter(Path output, ClassIdTable classIds) {
         return (cp, cc) -> {
             String className = cc.getName();
-            Store.getInstance().processClassLoad(className, cc.getClassFile().getInterfaces());
+            String[] interfaces = cc.getClassFile().getInterfaces();
+            Store.getInstance().processClassLoad(className, interfaces);
+            int id = classIds.getId(className);
             try {
-                cc.makeClassInitializer().insertBefore(String.format("me.bechberger.runtime.Store.getInstance().setStorePathIfNotNull(\"%s\"); me.bechberger.runtime.Store.getInstance()" +
-                        ".processClassUsage(\"%s\", %s.class);", output.toString(), className, className));
+                if (id == -1 && cc.getClassFile2().getMajorVersion() < ClassFile.JAVA_5) {
+                    // class files before Java 5 cannot load class constants, Javassist emits a Class.forName call
+                    cc.makeClassInitializer().insertBefore(String.format("me.bechberger.runtime.Store.getInstance().setStorePathIfNotNull(\"%s\"); me.bechberger.runtime.Store.getInstance()" +
+                            ".processClassUsage(\"%s\", %s.class);", output.toString(), className, className));
+                } else if (id == -1) {
+                    ClinitTemplate.PROCESS_CLASS_USAGE_WITH_STORE_PATH.insertInto(cc, output.toString(), className);
+                } else {
+                    classIds.setInterfaces(id, interfaces);
+                    ClinitTemplate.MARK_USED.insertInto(cc, id);
+                }
             } catch (CannotCompileException e) {
                 throw new RuntimeException(e);
             }
         };
     }
 
-    public static Supplier<List<JarEntryPair>> createStoreClassSupplier() {
-        return () -> {
+    /**
+     * Direct interfaces of classes outside the instrumented JAR (like JDK interfaces), read from the class files
+     * of the class path of the tool, empty if the class is unknown
+     */
+    private static Function<String, String[]> createInterfaceResolver() {
+        ClassPool pool = new ClassPool(true);
+        return className -> {
             try {
-                return List.of(JarEntryPair.of(Store.class, "me/bechberger/runtime/Store.class"),
-                        JarEntryPair.of(Store.Entry.class, "me/bechberger/runtime/Store$Entry.class"),
-                        JarEntryPair.of(Store.State.class, "me/bechberger/runtime/Store$State.class"));
+                return pool.get(className).getClassFile().getInterfaces();
+            } catch (NotFoundException e) {
+                return new String[0];
+            }
+        };
+    }
+
+    /**
+     * Supplies all classes of the runtime (from the bundled dead-code-runtime.jar) and the class id table,
+     * called after all classes are instrumented
+     */
+    public static Supplier<List<JarEntryPair>> createStoreClassSupplier(ClassIdTable classIds) {
+        return () -> {
+            try (InputStream in = ClassAndLibraryTransformer.class.getClassLoader().getResourceAsStream("dead-code" +
+                    "-runtime.jar")) {
+                if (in == null) {
+                    throw new RuntimeException("Could not find dead-code-runtime.jar");
+                }
+                List<JarEntryPair> entries = new ArrayList<>();
+                try (JarInputStream runtimeJar = new JarInputStream(in)) {
+                    JarEntry entry;
+                    while ((entry = runtimeJar.getNextJarEntry()) != null) {
+                        if (entry.getName().endsWith(".class")) {
+                            entries.add(new JarEntryPair(entry.getName(),
+                                    new ByteArrayInputStream(runtimeJar.readAllBytes())));
+                        }
+                    }
+                }
+                classIds.computeInterfaceClosures(createInterfaceResolver());
+                entries.add(new JarEntryPair(ClassIdTable.RESOURCE, new ByteArrayInputStream(classIds.toBytes())));
+                return entries;
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         };
     }
-}
\ No newline at end of file
+}
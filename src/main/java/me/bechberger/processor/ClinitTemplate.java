@@ -0,0 +1,161 @@
+package me.bechberger.processor;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ByteArray;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prebuilt bytecode of the hooks that are prepended to static initializers, so instrumenting a class
+ * only adds a few constant pool entries and copies the instructions, instead of compiling Java source with Javassist
+ * <p>
+ * A template is a fixed instruction sequence whose constant pool indexes are patched for every class
+ * (constants are always loaded with {@code ldc_w}, so the layout does not depend on the indexes).
+ * The instructions neither branch nor use locals, so the existing stack map frames only have to be shifted.
+ */
+public final class ClinitTemplate {
+
+    private static final String STORE = "me.bechberger.runtime.Store";
+    private static final String STORE_DESCRIPTOR = "Lme/bechberger/runtime/Store;";
+
+    /** {@code Store.getInstance().processClassUsage(className)}, arguments: class name */
+    public static final ClinitTemplate PROCESS_CLASS_USAGE = new Builder()
+            .op(Opcode.INVOKESTATIC, method(STORE, "getInstance", "()" + STORE_DESCRIPTOR))
+            .op(Opcode.LDC_W, string(0))
+            .op(Opcode.INVOKEVIRTUAL, method(STORE, "processClassUsage", "(Ljava/lang/String;)V"))
+            .build(2);
+
+    /**
+     * {@code Store.getInstance().setStorePathIfNotNull(storePath);
+     * Store.getInstance().processClassUsage(className, Class.class)}, arguments: store path and class name
+     * <p>
+     * Only for class files of Java 5 and later, older ones cannot load class constants.
+     */
+    public static final ClinitTemplate PROCESS_CLASS_USAGE_WITH_STORE_PATH = new Builder()
+            .op(Opcode.INVOKESTATIC, method(STORE, "getInstance", "()" + STORE_DESCRIPTOR))
+            .op(Opcode.LDC_W, string(0))
+            .op(Opcode.INVOKEVIRTUAL, method(STORE, "setStorePathIfNotNull", "(Ljava/lang/String;)V"))
+            .op(Opcode.INVOKESTATIC, method(STORE, "getInstance", "()" + STORE_DESCRIPTOR))
+            .op(Opcode.LDC_W, string(1))
+            .op(Opcode.LDC_W, classConstant(1))
+            .op(Opcode.INVOKEVIRTUAL, method(STORE, "processClassUsage", "(Ljava/lang/String;Ljava/lang/Class;)V"))
+            .build(3);
+
+    /** {@code Store.markUsed(id)}, arguments: class id */
+    public static final ClinitTemplate MARK_USED = new Builder()
+            .op(Opcode.LDC_W, integer(0))
+            .op(Opcode.INVOKESTATIC, method(STORE, "markUsed", "(I)V"))
+            .build(1);
+
+    /** {@code System.err.println(message)}, arguments: message */
+    public static final ClinitTemplate REPORT = new Builder()
+            .op(Opcode.GETSTATIC, field("java.lang.System", "err", "Ljava/io/PrintStream;"))
+            .op(Opcode.LDC_W, string(0))
+            .op(Opcode.INVOKEVIRTUAL, method("java.io.PrintStream", "println", "(Ljava/lang/String;)V"))
+            .build(2);
+
+    /** {@code System.err.println(message); System.exit(1)}, arguments: message */
+    public static final ClinitTemplate REPORT_AND_EXIT = new Builder()
+            .op(Opcode.GETSTATIC, field("java.lang.System", "err", "Ljava/io/PrintStream;"))
+            .op(Opcode.LDC_W, string(0))
+            .op(Opcode.INVOKEVIRTUAL, method("java.io.PrintStream", "println", "(Ljava/lang/String;)V"))
+            .op(Opcode.ICONST_1)
+            .op(Opcode.INVOKESTATIC, method("java.lang.System", "exit", "(I)V"))
+            .build(2);
+
+    /** constant of the template, added to the constant pool of the instrumented class */
+    @FunctionalInterface
+    private interface Constant {
+        /** @return index of the constant in the pool */
+        int addTo(ConstPool pool, Object[] arguments);
+    }
+
+    private static Constant method(String className, String name, String descriptor) {
+        return (pool, arguments) -> pool.addMethodrefInfo(pool.addClassInfo(className), name, descriptor);
+    }
+
+    private static Constant field(String className, String name, String descriptor) {
+        return (pool, arguments) -> pool.addFieldrefInfo(pool.addClassInfo(className), name, descriptor);
+    }
+
+    private static Constant string(int argument) {
+        return (pool, arguments) -> pool.addStringInfo((String) arguments[argument]);
+    }
+
+    private static Constant integer(int argument) {
+        return (pool, arguments) -> pool.addIntegerInfo((Integer) arguments[argument]);
+    }
+
+    private static Constant classConstant(int argument) {
+        return (pool, arguments) -> pool.addClassInfo((String) arguments[argument]);
+    }
+
+    private static class Builder {
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Integer> offsets = new ArrayList<>();
+        private final List<Constant> constants = new ArrayList<>();
+
+        Builder op(int opcode) {
+            code.write(opcode);
+            return this;
+        }
+
+        /** instruction with a two byte constant pool index */
+        Builder op(int opcode, Constant constant) {
+            code.write(opcode);
+            offsets.add(code.size());
+            constants.add(constant);
+            code.write(0);
+            code.write(0);
+            return this;
+        }
+
+        ClinitTemplate build(int maxStack) {
+            return new ClinitTemplate(code.toByteArray(), offsets.stream().mapToInt(i -> i).toArray(),
+                    constants.toArray(new Constant[0]), maxStack);
+        }
+    }
+
+    /** instructions with zeros in place of the constant pool indexes */
+    private final byte[] code;
+    /** offsets of the constant pool indexes in the code */
+    private final int[] offsets;
+    private final Constant[] constants;
+    private final int maxStack;
+
+    private ClinitTemplate(byte[] code, int[] offsets, Constant[] constants, int maxStack) {
+        this.code = code;
+        this.offsets = offsets;
+        this.constants = constants;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * Prepend the instructions to the static initializer of the class (creating it if needed),
+     * like {@code makeClassInitializer().insertBefore(...)}
+     */
+    public void insertInto(CtClass cc, Object... arguments) throws CannotCompileException {
+        MethodInfo clinit = cc.makeClassInitializer().getMethodInfo();
+        ConstPool pool = clinit.getConstPool();
+        byte[] patched = code.clone();
+        for (int i = 0; i < constants.length; i++) {
+            ByteArray.write16bit(constants[i].addTo(pool, arguments), patched, offsets[i]);
+        }
+        CodeAttribute codeAttribute = clinit.getCodeAttribute();
+        try {
+            // jumps to the start of the initializer still go to its original first instruction
+            codeAttribute.iterator().insertEx(patched);
+        } catch (BadBytecode e) {
+            throw new CannotCompileException(e);
+        }
+        codeAttribute.setMaxStack(Math.max(codeAttribute.getMaxStack(), maxStack));
+    }
+}
@@ -0,0 +1,331 @@
+package me.bechberger.processor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static me.bechberger.processor.Util.classNameForEntryName;
+
+/**
+ * Persistent index of the classes and nested libraries of JARs, with one file per JAR in a directory
+ * <p>
+ * The files are content-addressed: nested JARs are keyed by the SHA-256 of their raw (possibly compressed) entry
+ * data, outer JARs by the SHA-256 of the whole file. So a changed library gets a new key and is analysed again,
+ * while the unchanged ones are answered from the index.
+ * <p>
+ * Format of a file (UTF-8): the header line, a line per class ({@code c CRC CLASS_NAME})
+ * and then a line per nested JAR ({@code j CRC KEY ENTRY_NAME}), both in the order of the entries,
+ * with the CRC-32 of the entry from the central directory as 8 hex digits.
+ * <p>
+ * Whenever the JAR is open anyway, its record is only used if it lists the same entries with the same CRCs
+ * (see {@link Record#matches}), which only needs the already parsed central directory. This guards against index
+ * files that do not match their key, like ones copied from another cache or written with other class name rules.
+ * <p>
+ * Digesting a large outer JAR on every command is expensive, so its key is also stored by its path
+ * (in a {@code .path} file named by the digest of the path) together with the modification time, size and file key
+ * of the file, and only computed again if one of them changed.
+ */
+public class JarIndex {
+
+    private static final String HEADER = "dead-code-index 3";
+    private static final String PATH_HEADER = "dead-code-index-path 1";
+
+    record IndexedClass(String name, long crc) {
+    }
+
+    record NestedJar(String key, String entryName, long crc) {
+    }
+
+    /** content of a single JAR, without the content of its nested JARs */
+    record Record(List<IndexedClass> classes, List<NestedJar> nestedJars) {
+
+        /** whether the JAR has exactly the class and JAR entries of this record, in order and with the same CRCs */
+        boolean matches(ZipView view) {
+            int classIndex = 0;
+            int jarIndex = 0;
+            for (ZipView.Entry entry : view.entries()) {
+                String name = entry.name();
+                if (name.endsWith(".class")) {
+                    if (classIndex == classes.size()) {
+                        return false;
+                    }
+                    IndexedClass indexed = classes.get(classIndex++);
+                    if (indexed.crc != entry.crc() || !indexed.name.equals(classNameForEntryName(name))) {
+                        return false;
+                    }
+                } else if (name.endsWith(".jar")) {
+                    if (jarIndex == nestedJars.size()) {
+                        return false;
+                    }
+                    NestedJar indexed = nestedJars.get(jarIndex++);
+                    if (indexed.crc != entry.crc() || !indexed.entryName.equals(name)) {
+                        return false;
+                    }
+                }
+            }
+            return classIndex == classes.size() && jarIndex == nestedJars.size();
+        }
+    }
+
+    /**
+     * Key of an outer JAR and the attributes of its file when the key was computed
+     *
+     * @param lastModified as {@link FileTime#toString()}, to keep the full precision
+     * @param fileKey      as {@link String#valueOf(Object)} of {@link BasicFileAttributes#fileKey()}, like the inode
+     */
+    private record PathKey(String path, String lastModified, long size, String fileKey, String key) {
+
+        static PathKey of(Path path, BasicFileAttributes attributes, String key) {
+            return new PathKey(path.toString(), attributes.lastModifiedTime().toString(), attributes.size(),
+                    String.valueOf(attributes.fileKey()), key);
+        }
+
+        boolean hasSameFile(PathKey other) {
+            return path.equals(other.path) && lastModified.equals(other.lastModified) && size == other.size &&
+                    fileKey.equals(other.fileKey);
+        }
+    }
+
+    /**
+     * Files modified less than this ago are not cached by path: a change within the resolution of the modification
+     * time that keeps the size would go unnoticed
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    /** null if the index is only kept in memory */
+    private final Path directory;
+    private final Map<String, Optional<Record>> records = new ConcurrentHashMap<>();
+    private final Map<Path, PathKey> pathKeys = new ConcurrentHashMap<>();
+    private volatile boolean writeFailed = false;
+
+    public JarIndex(Path directory) {
+        this.directory = directory;
+    }
+
+    /** index that is only kept in memory */
+    public JarIndex() {
+        this(null);
+    }
+
+    /** key of a nested JAR, the digest of its raw entry data */
+    static String key(ZipView parent, ZipView.Entry nestedJar) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update((byte) nestedJar.method());
+        digest.update(parent.data(nestedJar));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /** key of an outer JAR, the digest of the whole file */
+    static String key(ZipView view) throws IOException {
+        MessageDigest digest = newDigest();
+        view.digest(digest);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Key of an outer JAR, the file is only digested again if its modification time, size or file key changed
+     * since its key was last computed (in this or, with a directory, in an earlier run)
+     *
+     * @param attributes attributes of the file, read before the view was opened
+     */
+    String key(Path file, BasicFileAttributes attributes, ZipView view) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        PathKey current = PathKey.of(path, attributes, null);
+        PathKey cached = pathKeys.computeIfAbsent(path, p -> directory == null ? null : readPathKey(pathFile(p)));
+        if (cached != null && cached.hasSameFile(current)) {
+            return cached.key;
+        }
+        String key = key(view);
+        // the file might have been changed while it was digested
+        PathKey computed = PathKey.of(path, Files.readAttributes(path, BasicFileAttributes.class), key);
+        if (computed.hasSameFile(current) &&
+                attributes.lastModifiedTime().toMillis() < System.currentTimeMillis() - RACY_MILLIS) {
+            pathKeys.put(path, computed);
+            if (directory != null) {
+                write(pathFile(path), "path", writer -> writer.write(String.join("\n", PATH_HEADER, computed.path,
+                        computed.lastModified, Long.toString(computed.size), computed.fileKey, computed.key) + "\n"));
+            }
+        }
+        return key;
+    }
+
+    /** file of the key of the JAR at the path, named by the digest of the path */
+    private Path pathFile(Path path) {
+        MessageDigest digest = newDigest();
+        digest.update(path.toString().getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(HexFormat.of().formatHex(digest.digest()) + ".path");
+    }
+
+    /** @return the key, or null if there is none (or it is unreadable) */
+    private static PathKey readPathKey(Path file) {
+        try {
+            List<String> lines = Files.readAllLines(file);
+            if (lines.size() != 6 || !lines.get(0).equals(PATH_HEADER)) {
+                return null;
+            }
+            return new PathKey(lines.get(1), lines.get(2), Long.parseLong(lines.get(3)), lines.get(4), lines.get(5));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Ignoring invalid index file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + ".idx");
+    }
+
+    /**
+     * @return the record, or null if there is none (or it is unreadable)
+     */
+    Record get(String key) {
+        return records.computeIfAbsent(key, k -> Optional.ofNullable(directory == null ? null : read(file(k))))
+                .orElse(null);
+    }
+
+    /**
+     * @param view the JAR, if it is open anyway, null otherwise
+     * @return the record, or null if there is none (or it is unreadable or does not match the JAR)
+     */
+    Record get(String key, ZipView view) {
+        Record record = get(key);
+        return record == null || (view != null && !record.matches(view)) ? null : record;
+    }
+
+    /** @return the CRC in the 8 hex digits at the start, followed by a space, or -1 if there is none */
+    private static long parseCrc(String line, int start) {
+        if (line.length() <= start + 9 || line.charAt(start + 8) != ' ') {
+            return -1;
+        }
+        try {
+            return HexFormat.fromHexDigitsToLong(line, start, start + 8);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static Record read(Path file) {
+        try {
+            List<String> lines = Files.readAllLines(file);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+                return null;
+            }
+            List<IndexedClass> classes = new ArrayList<>();
+            List<NestedJar> nestedJars = new ArrayList<>();
+            for (String line : lines.subList(1, lines.size())) {
+                long crc = parseCrc(line, 2);
+                int separator = line.indexOf(' ', 11);
+                if (crc == -1) {
+                    return null;
+                } else if (line.startsWith("c ")) {
+                    classes.add(new IndexedClass(line.substring(11), crc));
+                } else if (line.startsWith("j ") && separator > 11) {
+                    nestedJars.add(new NestedJar(line.substring(11, separator), line.substring(separator + 1), crc));
+                } else {
+                    return null;
+                }
+            }
+            return new Record(classes, nestedJars);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Ignoring invalid index file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store a record, failing to write the index only results in a warning
+     */
+    void put(String key, Record record) {
+        records.put(key, Optional.of(record));
+        write(file(key), key, writer -> {
+            writer.write(HEADER);
+            writer.write('\n');
+            HexFormat hex = HexFormat.of();
+            for (IndexedClass indexedClass : record.classes) {
+                writer.write("c " + hex.toHexDigits((int) indexedClass.crc) + " " + indexedClass.name + "\n");
+            }
+            for (NestedJar nestedJar : record.nestedJars) {
+                writer.write("j " + hex.toHexDigits((int) nestedJar.crc) + " " + nestedJar.key + " " +
+                        nestedJar.entryName + "\n");
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface Content {
+        void writeTo(BufferedWriter writer) throws IOException;
+    }
+
+    /** replace the file atomically, failing to write the index only results in a warning */
+    private void write(Path file, String prefix, Content content) {
+        if (directory == null || writeFailed) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, prefix, ".tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+                    content.writeTo(writer);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            writeFailed = true;
+            System.err.println("Could not write the JAR index to " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check whether the JAR (or one of its nested JARs) contains a class matching the predicate
+     *
+     * @param view the JAR, if it is open anyway, null otherwise
+     * @return null if the JAR or one of its nested JARs is not in the index
+     */
+    Boolean containsMatchingClass(String key, ZipView view, Predicate<String> predicate) {
+        Record record = get(key, view);
+        if (record == null) {
+            return null;
+        }
+        for (IndexedClass indexedClass : record.classes) {
+            if (predicate.test(indexedClass.name)) {
+                return true;
+            }
+        }
+        for (NestedJar nestedJar : record.nestedJars) {
+            Boolean nested = containsMatchingClass(nestedJar.key, null, predicate);
+            if (nested == null || nested) {
+                return nested;
+            }
+        }
+        return false;
+    }
+}
@@ -5,25 +5,33 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 
-import static me.bechberger.processor.Util.classNameForJarEntry;
+import static me.bechberger.processor.Util.classNameForEntryName;
 
 /**
  * Read the classes in the JARs (containing potentially other JARs)
+ * <p>
+ * STORED nested JARs (like the libraries in Spring Boot JARs) are read in place,
+ * only compressed ones are extracted into a temporary file. Nested JARs are analysed concurrently,
+ * but all consumers are called on the thread calling {@link #process()}.
  */
 public class NestedJarProcessor {
 
     private final Path sourceFile;
     private Predicate<String> isClassIncluded;
+    /** consumes all class names, might be null */
+    private Consumer<String> classConsumer;
     private Consumer<String> unusedLibraries;
     private Consumer<String> usedLibraries;
-
-    private boolean isUsed = false;
-
+    /** might be null */
+    private JarIndex index;
 
     private NestedJarProcessor(Path sourceFile, Predicate<String> isClassIncluded, Consumer<String> unusedLibraryConsumer
             , Consumer<String> usedLibraryConsumer) {
@@ -39,11 +47,29 @@ public class NestedJarProcessor {
         });
     }
 
+    /**
+     * A library is used if this filter matches one of its classes,
+     * the remaining classes of a library are skipped as soon as one matches
+     */
     public NestedJarProcessor withClassFilter(Predicate<String> isClassUsed) {
         this.isClassIncluded = isClassUsed;
         return this;
     }
 
+    /** Consumes the names of all classes, in all JARs */
+    public NestedJarProcessor withClassConsumer(Consumer<String> classConsumer) {
+        this.classConsumer = classConsumer;
+        return this;
+    }
+
+    /**
+     * Answer from the index where possible and add the JARs that are not yet indexed to it
+     */
+    public NestedJarProcessor withIndex(JarIndex index) {
+        this.index = index;
+        return this;
+    }
+
     public NestedJarProcessor withUnusedLibraryConsumer(Consumer<String> unusedLibraryConsumer) {
         this.unusedLibraries = unusedLibraryConsumer;
         return this;
@@ -54,47 +80,163 @@ public class NestedJarProcessor {
         return this;
     }
 
+    /**
+     * Result of analysing a JAR
+     *
+     * @param classes   all classes, empty if there is no class consumer
+     * @param libraries nested libraries and whether they are used, nested ones before their parents
+     */
+    private record Result(boolean used, List<String> classes, List<Library> libraries) {
+    }
+
+    private record Library(String name, boolean used) {
+    }
+
     public void process() throws IOException {
-        try (JarFile jarFile = new JarFile(sourceFile.toFile())) {
-            jarFile.stream().forEach(jarEntry -> {
-                try {
-                    String name = jarEntry.getName();
-                    if (name.endsWith(".class")) {
-                        processClassEntry(jarFile, jarEntry);
-                    } else if (name.endsWith(".jar")) {
-                        processJAREntry(jarFile, jarEntry);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        Result result;
+        try {
+            result = ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> {
+                // read before opening the file, so that a concurrent change cannot be cached under the old attributes
+                BasicFileAttributes attributes = index == null ? null :
+                        Files.readAttributes(sourceFile, BasicFileAttributes.class);
+                try (ZipView view = ZipView.open(sourceFile)) {
+                    String key = index == null ? null : index.key(sourceFile, attributes, view);
+                    Result indexed = key == null ? null : fromIndex(key, view);
+                    return indexed != null ? indexed : process(view, key);
                 }
-            });
+            }));
+        } catch (RuntimeException e) {
+            // the fork-join framework wraps checked exceptions
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+            }
+            throw e;
+        }
+        if (classConsumer != null) {
+            result.classes.forEach(classConsumer);
+        }
+        for (Library library : result.libraries) {
+            (library.used ? usedLibraries : unusedLibraries).accept(library.name);
         }
     }
 
-    private void processClassEntry(JarFile jarFile, JarEntry jarEntry) {
-        String className = classNameForJarEntry(jarEntry);
-        if (isClassIncluded.test(className)) {
-            isUsed = true;
+    /**
+     * @param key key of the JAR in the index, null if there is no index
+     */
+    private Result process(ZipView view, String key) throws IOException {
+        boolean used = false;
+        List<String> classes = new ArrayList<>();
+        List<ForkJoinTask<Result>> nestedJars = new ArrayList<>();
+        List<String> nestedLibraryNames = new ArrayList<>();
+        List<JarIndex.IndexedClass> indexedClasses = new ArrayList<>();
+        List<JarIndex.NestedJar> indexedJars = new ArrayList<>();
+        // only records with all classes are indexed
+        boolean complete = true;
+        for (ZipView.Entry entry : view.entries()) {
+            String name = entry.name();
+            if (name.endsWith(".class")) {
+                if (used && classConsumer == null) {
+                    // we already know that the library is used
+                    complete = false;
+                    continue;
+                }
+                String className = classNameForEntryName(name);
+                if (classConsumer != null) {
+                    classes.add(className);
+                }
+                if (key != null) {
+                    indexedClasses.add(new JarIndex.IndexedClass(className, entry.crc()));
+                }
+                if (!used && isClassIncluded.test(className)) {
+                    used = true;
+                }
+            } else if (name.endsWith(".jar")) {
+                nestedLibraryNames.add(Util.libraryNameForPath(name));
+                String nestedKey = index == null ? null : JarIndex.key(view, entry);
+                if (key != null) {
+                    indexedJars.add(new JarIndex.NestedJar(nestedKey, name, entry.crc()));
+                }
+                nestedJars.add(ForkJoinTask.adapt(() -> processJAREntry(view, entry, nestedKey)).fork());
+            }
+        }
+        List<Library> libraries = new ArrayList<>();
+        for (int i = 0; i < nestedJars.size(); i++) {
+            Result nested = nestedJars.get(i).join();
+            classes.addAll(nested.classes);
+            libraries.addAll(nested.libraries);
+            libraries.add(new Library(nestedLibraryNames.get(i), nested.used));
+            used |= nested.used;
+        }
+        if (key != null && complete) {
+            index.put(key, new JarIndex.Record(indexedClasses, indexedJars));
         }
+        return new Result(used, classes, libraries);
     }
 
-    private void processJAREntry(JarFile jarFile, JarEntry jarEntry) throws IOException {
-        String libraryName = Util.libraryNameForPath(jarEntry.getName());
+    /**
+     * Compute the result from the index
+     *
+     * @param view the JAR, if it is open anyway, null otherwise
+     * @return null if the JAR or one of its nested JARs is not in the index
+     */
+    private Result fromIndex(String key, ZipView view) {
+        JarIndex.Record record = index.get(key, view);
+        if (record == null) {
+            return null;
+        }
+        boolean used = false;
+        List<String> classes = new ArrayList<>();
+        for (JarIndex.IndexedClass indexedClass : record.classes()) {
+            String className = indexedClass.name();
+            if (classConsumer != null) {
+                classes.add(className);
+            }
+            if (!used && isClassIncluded.test(className)) {
+                used = true;
+            }
+        }
+        List<Library> libraries = new ArrayList<>();
+        for (JarIndex.NestedJar nestedJar : record.nestedJars()) {
+            Result nested = fromIndex(nestedJar.key(), null);
+            if (nested == null) {
+                return null;
+            }
+            classes.addAll(nested.classes);
+            libraries.addAll(nested.libraries);
+            libraries.add(new Library(Util.libraryNameForPath(nestedJar.entryName()), nested.used));
+            used |= nested.used;
+        }
+        return new Result(used, classes, libraries);
+    }
+
+    /**
+     * @param key key of the nested JAR in the index, null if there is no index
+     */
+    private Result processJAREntry(ZipView view, ZipView.Entry entry, String key) throws IOException {
+        // only the central directory of a STORED JAR is read
+        ZipView nestedView = entry.isStored() ? view.nested(entry) : null;
+        if (key != null) {
+            Result indexed = fromIndex(key, nestedView);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+        if (nestedView != null) {
+            return process(nestedView, key);
+        }
+        // compressed nested JARs have to be extracted first
         Path tempFile = Files.createTempFile("nested-jar", ".jar");
-        tempFile.toFile().deleteOnExit();
-        // copy entry over
-        InputStream in = jarFile.getInputStream(jarEntry);
-        Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
-        NestedJarProcessor nestedJarProcessor;
-
-        nestedJarProcessor = new NestedJarProcessor(tempFile, isClassIncluded, unusedLibraries, usedLibraries);
-        nestedJarProcessor.process();
-
-        if (nestedJarProcessor.isUsed) {
-            isUsed = true;
-            usedLibraries.accept(libraryName);
-        } else {
-            unusedLibraries.accept(libraryName);
+        try {
+            try (InputStream in = view.inputStream(entry)) {
+                Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (ZipView extracted = ZipView.open(tempFile)) {
+                return process(extracted, key);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
         }
     }
 }
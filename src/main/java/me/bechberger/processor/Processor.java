@@ -1,15 +1,32 @@
 package me.bechberger.processor;
 
+import com.sun.tools.attach.AgentInitializationException;
+import com.sun.tools.attach.AgentLoadException;
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import me.bechberger.runtime.BinaryStore;
+import me.bechberger.runtime.ClassIdTable;
 import me.bechberger.runtime.Store;
 import picocli.CommandLine;
 import picocli.CommandLine.*;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Command(name = "dead-code", mixinStandardHelpOptions = true,
         description = "Process the information gathered by the dead-code agent")
@@ -17,23 +34,97 @@ public class Processor implements Runnable {
 
     @Spec
     CommandLine.Model.CommandSpec spec;
-    @Parameters(index = "0", description = "The input store file")
+    @Parameters(index = "0", description = "The input store file (text or binary format)")
     private Path input;
 
+    @Option(names = {"-j", "--parallelism"}, description = "Number of threads that transform classes and nested " +
+            "libraries, default: ${DEFAULT-VALUE}")
+    private int parallelism = 1;
+
+    @Option(names = "--index", paramLabel = "DIR", description = "Directory of the persistent index of the classes " +
+            "in the (nested) JARs, default: ~/.cache/dead-code/index")
+    private Path indexDirectory = Path.of(System.getProperty("user.home"), ".cache", "dead-code", "index");
+
+    @Option(names = "--no-index", description = "Do not use the JAR index")
+    private boolean noIndex;
+
+    // the daemon parses this option too, but ignores it
+    @Option(names = "--server", paramLabel = "SOCKET", description = "Let the daemon listening on this socket " +
+            "(see serve) run the command")
+    private Path server;
+
+    /** cache of the daemon, null when running a single command */
+    private final ProcessorCache cache;
+
+    private JarIndex index;
+
+    public Processor() {
+        this(null);
+    }
+
+    Processor(ProcessorCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Run the command, or send it to the daemon if {@code --server} is passed
+     *
+     * @return exit code
+     */
+    public static int execute(String[] args) {
+        CommandLine commandLine = new CommandLine(new Processor());
+        commandLine.setExecutionStrategy(parseResult -> {
+            Path socket = parseResult.matchedOptionValue("--server", null);
+            if (socket == null) {
+                return new RunLast().execute(parseResult);
+            }
+            try {
+                return ProcessorServer.query(socket, args, commandLine.getOut(), commandLine.getErr());
+            } catch (IOException e) {
+                throw new ExecutionException(commandLine, "Could not query the daemon on " + socket, e);
+            }
+        });
+        return commandLine.execute(args);
+    }
+
     @Override
     public void run() {
         throw new ParameterException(spec.commandLine(), "Specify a subcommand");
     }
 
+    private JarIndex getIndex() {
+        if (cache != null) {
+            // the daemon keeps the index in memory even without the persistent one
+            return cache.getIndex(noIndex ? null : indexDirectory);
+        }
+        if (index == null && !noIndex) {
+            index = new JarIndex(indexDirectory);
+        }
+        return index;
+    }
+
+    /** load the input store, the store must not be modified as the daemon shares it between queries */
+    private Store loadStore() throws IOException {
+        return cache == null ? new Store().load(input) : cache.getStore(input);
+    }
+
+    private PrintWriter out() {
+        return spec.commandLine().getOut();
+    }
+
+    private NestedJarProcessor createNestedJarProcessor(Path jar) {
+        return new NestedJarProcessor(jar).withIndex(getIndex());
+    }
+
     private Set<String> getClasses(Path jar) throws IOException {
         Set<String> classes = new HashSet<>();
-        new NestedJarProcessor(jar).withClassFilter(classes::add).process();
+        createNestedJarProcessor(jar).withClassConsumer(classes::add).process();
         return classes;
     }
 
     @Command(name = "unusedClasses", description = "List all unused (but loaded or present in JAR) classes")
     public void unusedClasses(@Parameters(arity = "0..1", paramLabel = "JAR") Path jar) throws IOException {
-        Store store = new Store().load(input);
+        Store store = loadStore();
         Set<String> unusedClasses;
         if (jar != null) {
             Set<String> usedClasses = store.getUsedClasses();
@@ -41,75 +132,211 @@ public class Processor implements Runnable {
         } else {
             unusedClasses = store.getUnusedClasses();
         }
-        unusedClasses.stream().sorted().forEach(System.out::println);
+        unusedClasses.stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "usedClasses", description = "List all used classes")
     public void usedClasses() throws IOException {
-        Store store = new Store().load(input);
-        store.getUsedClasses().stream().sorted().forEach(System.out::println);
+        Store store = loadStore();
+        store.getUsedClasses().stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "loadedClasses", description = "List all loaded classes")
     public void loadedClasses() throws IOException {
-        Store store = new Store().load(input);
-        store.getLoadedClasses().stream().sorted().forEach(System.out::println);
+        Store store = loadStore();
+        store.getLoadedClasses().stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "allClasses", description = "List all classes")
     public void allClasses(@Parameters(index = "0", paramLabel = "JAR") Path jar) throws IOException {
-        getClasses(jar).stream().sorted().forEach(System.out::println);
+        getClasses(jar).stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "unusedLibraries", description = "List all unused libraries")
     public void unusedLibraries(@Parameters(index = "0", paramLabel = "JAR") Path jar) throws IOException {
-        Libraries libraries = findUsedAndUnusedLibraries(jar, new Store().load(input), false);
-        libraries.unused.stream().sorted().forEach(System.out::println);
+        Libraries libraries = findUsedAndUnusedLibraries(jar, loadStore(), false);
+        libraries.unused.stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "usedLibraries", description = "List all used libraries")
     public void usedLibraries(@Parameters(index = "0", paramLabel = "JAR") Path jar) throws IOException {
-        Libraries libraries = findUsedAndUnusedLibraries(jar, new Store().load(input), false);
-        libraries.used.stream().sorted().forEach(System.out::println);
+        Libraries libraries = findUsedAndUnusedLibraries(jar, loadStore(), false);
+        libraries.used.stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "notLoadedLibraries", description = "List all libraries that are present but are not loaded")
     public void notLoadedLibraries(@Parameters(index = "0", paramLabel = "JAR") Path jar) throws IOException {
-        Libraries libraries = findUsedAndUnusedLibraries(jar, new Store().load(input), true);
-        libraries.unused.stream().sorted().forEach(System.out::println);
+        Libraries libraries = findUsedAndUnusedLibraries(jar, loadStore(), true);
+        libraries.unused.stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "loadedLibraries", description = "List all loaded libraries")
     public void loadedLibraries(@Parameters(index = "0", paramLabel = "JAR") Path jar) throws IOException {
-        Libraries libraries = findUsedAndUnusedLibraries(jar, new Store().load(input), true);
-        libraries.used.stream().sorted().forEach(System.out::println);
+        Libraries libraries = findUsedAndUnusedLibraries(jar, loadStore(), true);
+        libraries.used.stream().sorted().forEach(out()::println);
     }
 
     @Command(name = "instrumentUnusedClasses", description = "Instrument all unused classes to add an alert (or System.exit(1) depending on the options)")
     public void instrumentUnusedClasses(@Parameters(index = "0", paramLabel = "JAR") Path jar, @Parameters(index = "1", paramLabel
             = "OUTPUT_JAR") Path output, @Option(names = "--exit", description = "add System.exit(1) to every unused class") boolean exit) throws IOException {
-        Store store = new Store().load(input);
+        Store store = loadStore();
         ClassAndLibraryTransformer clr =
-                new ClassAndLibraryTransformer(jar, Files.newOutputStream(output)).withClassTransformer(ClassAndLibraryTransformer.createUnusedClassTransformer((cn) -> store.isClassUsed(cn) && !store.isClassMarkedForDeletion(cn), store::getDeletionMessage, exit));
+                new ClassAndLibraryTransformer(jar, Files.newOutputStream(output)).withParallelism(parallelism).withLog(out()::println).withClassTransformer(ClassAndLibraryTransformer.createUnusedClassTransformer((cn) -> store.isClassUsed(cn) && !store.isClassMarkedForDeletion(cn), store::getDeletionMessage, exit));
         clr.process();
     }
 
     @Command(name = "instrument", description = "Instrument all classes to store information about which classes are loaded and used")
     public void instrument(@Parameters(index = "0", paramLabel = "JAR") Path jar, @Parameters(index = "1", paramLabel
-            = "OUTPUT_JAR") Path output, @Option(names = "--exit", description = "add System.exit(1) to every unused class") boolean exit) throws IOException {
+            = "OUTPUT_JAR") Path output, @Option(names = "--exit", description = "add System.exit(1) to every unused class") boolean exit,
+                           @Option(names = "--journal", paramLabel = "JOURNAL", description = "write the usage to a journal " +
+                                   "while the program runs, instead of writing the store on shutdown") Path journal) throws IOException {
+        // assign the class ids in the order of the entries
+        Set<String> classNames = new LinkedHashSet<>();
+        createNestedJarProcessor(jar).withClassConsumer(classNames::add).process();
+        ClassIdTable classIds = new ClassIdTable(journal == null ? input.toString() : null,
+                journal == null ? null : journal.toString(), new ArrayList<>(classNames));
         ClassAndLibraryTransformer clr =
-                new ClassAndLibraryTransformer(jar, Files.newOutputStream(output)).withClassTransformer(ClassAndLibraryTransformer.createClassInstrumenter(input)).withMiscFilesSupplier(ClassAndLibraryTransformer.createStoreClassSupplier());
+                new ClassAndLibraryTransformer(jar, Files.newOutputStream(output)).withParallelism(parallelism).withLog(out()::println).withClassTransformer(ClassAndLibraryTransformer.createClassInstrumenter(input, classIds)).withMiscFilesSupplier(ClassAndLibraryTransformer.createStoreClassSupplier(classIds));
         clr.process();
     }
 
+    @Command(name = "compactJournal", description = "Fold a journal into the store file (creating it if needed)")
+    public void compactJournal(@Parameters(index = "0", paramLabel = "JOURNAL") Path journal) throws IOException {
+        boolean binary = Files.exists(input) && BinaryStore.isBinary(input);
+        Store store = Files.exists(input) ? new Store().load(input) : new Store();
+        store.loadJournal(journal);
+        writeStore(store, input, binary);
+    }
+
+    @Command(name = "merge", description = "Merge store files into the store file (creating it if needed), " +
+            "every class gets the largest state and all flags; sorted inputs are streamed, unsorted ones are " +
+            "sorted in runs in temporary files, so only a bounded number of entries is kept in memory")
+    public void merge(@Parameters(arity = "1..*", paramLabel = "STORE", description = "store files or directories " +
+            "of store files") List<Path> stores) throws IOException {
+        boolean binary = Files.exists(input) && BinaryStore.isBinary(input);
+        List<Path> files = new ArrayList<>();
+        if (Files.exists(input)) {
+            files.add(input);
+        }
+        for (Path store : stores) {
+            if (Files.isDirectory(store)) {
+                try (Stream<Path> children = Files.list(store)) {
+                    children.filter(Files::isRegularFile).sorted().forEach(files::add);
+                }
+            } else {
+                files.add(store);
+            }
+        }
+        StoreMerger merger = new StoreMerger(files, parallelism,
+                binary ? StoreMerger.BINARY_ORDER : StoreMerger.CLASS_NAME_ORDER);
+        writeFile(input, out -> {
+            if (binary) {
+                try (BinaryStore.Writer writer = new BinaryStore.Writer()) {
+                    merger.merge(writer::add);
+                    writer.writeTo(out);
+                }
+            } else {
+                merger.merge(entry -> {
+                    out.write(entry.toString().getBytes());
+                    out.write('\n');
+                });
+            }
+        });
+    }
+
+    @Command(name = "serve", description = "Keep the stores and the JAR index in memory and run the commands " +
+            "passed with --server on this socket, stores are loaded again when they change")
+    public void serve(@Option(names = "--socket", required = true, paramLabel = "SOCKET",
+            description = "Unix domain socket to listen on") Path socket) throws IOException {
+        if (cache != null) {
+            throw new ParameterException(spec.commandLine(), "The daemon cannot start another daemon");
+        }
+        ProcessorCache serverCache = new ProcessorCache();
+        // fail early if the input is not a valid store
+        serverCache.getStore(input);
+        new ProcessorServer(socket, serverCache).serve(out());
+    }
+
+    @Command(name = "attach", description = "Attach the agent to a running JVM, it writes the store file " +
+            "when it is detached or the JVM exits")
+    public void attach(@Parameters(index = "0", paramLabel = "PID") String pid,
+                       @Option(names = "--options", paramLabel = "OPTIONS", description = "additional agent options, " +
+                               "comma separated") String options) throws IOException {
+        loadAgent(pid, "output=" + input.toAbsolutePath() + (options == null ? "" : "," + options));
+    }
+
+    @Command(name = "detach", description = "Detach the agent from a running JVM and write the store file")
+    public void detach(@Parameters(index = "0", paramLabel = "PID") String pid) throws IOException {
+        loadAgent(pid, "detach=true");
+    }
+
+    /** load this JAR as an agent into the JVM, which calls {@code Main.agentmain} */
+    private static void loadAgent(String pid, String agentArgs) throws IOException {
+        try {
+            Path agentJar = Path.of(Processor.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            VirtualMachine vm = VirtualMachine.attach(pid);
+            try {
+                vm.loadAgent(agentJar.toString(), agentArgs);
+            } finally {
+                vm.detach();
+            }
+        } catch (AttachNotSupportedException | AgentLoadException | URISyntaxException e) {
+            throw new IOException(e);
+        } catch (AgentInitializationException e) {
+            throw new IOException("The agent failed in the JVM " + pid + ", see its output", e);
+        }
+    }
+
+    enum Format {
+        text, binary
+    }
+
+    @Command(name = "convert", description = "Convert the store file between the text and the binary format")
+    public void convert(@Parameters(index = "0", paramLabel = "OUTPUT") Path output,
+                        @Option(names = "--format", description = "format of the output: ${COMPLETION-CANDIDATES}, " +
+                                "default: the other format") Format format) throws IOException {
+        boolean binary = format == null ? !BinaryStore.isBinary(input) : format == Format.binary;
+        writeStore(loadStore(), output, binary);
+    }
+
+    private static void writeStore(Store store, Path file, boolean binary) throws IOException {
+        writeFile(file, out -> {
+            if (binary) {
+                store.writeBinaryTo(out);
+            } else {
+                store.writeTo(out);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface OutputWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void writeFile(Path file, OutputWriter writer) throws IOException {
+        // the input might be mapped, so write to a temporary file first,
+        // unique so that concurrent commands writing the same file do not overwrite each other's temporary file
+        Path tmp = file.resolveSibling(file.getFileName() + "." + ProcessHandle.current().pid() + "-" +
+                Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE))) {
+                writer.write(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
     @Command(name = "reduceJAR", description = "Remove all unused classes and libraries from the JAR")
     public void reduceJAR(@Parameters(index = "0", paramLabel = "JAR") Path jar, @Parameters(index = "1", paramLabel
             = "OUTPUT_JAR") Path output,
                           @Option(names = "--onlyLibraries") boolean onlyLibraries) throws IOException {
-        Store store = new Store().load(input);
-        Libraries libraries = findUsedAndUnusedLibraries(jar, store, false);
+        Store store = loadStore();
         ClassAndLibraryTransformer clr =
-                new ClassAndLibraryTransformer(jar, Files.newOutputStream(output)).withLibraryFilter(libraries.used::contains);
+                new ClassAndLibraryTransformer(jar, Files.newOutputStream(output)).withParallelism(parallelism).withLog(out()::println).withUsedLibrariesOnly(store::isClassUsed).withIndex(getIndex());
         if (!onlyLibraries) {
             clr.withClassFilter(c -> store.isClassLoaded(c) && !store.isClassMarkedForDeletion(c));
         }
@@ -120,10 +347,10 @@ public class Processor implements Runnable {
     }
 
     /** a class is used if one of its classes is loaded */
-    private static Libraries findUsedAndUnusedLibraries(Path jar, Store store, boolean countLoadedAsUsed) throws IOException {
+    private Libraries findUsedAndUnusedLibraries(Path jar, Store store, boolean countLoadedAsUsed) throws IOException {
         Set<String> usedLibraries = new HashSet<>();
         Set<String> unusedLibraries = new HashSet<>();
-        new NestedJarProcessor(jar).withClassFilter(countLoadedAsUsed ? store::isClassLoaded : store::isClassUsed)
+        createNestedJarProcessor(jar).withClassFilter(countLoadedAsUsed ? store::isClassLoaded : store::isClassUsed)
                 .withUnusedLibraryConsumer(unusedLibraries::add).withUsedLibraryConsumer(usedLibraries::add).process();
         return new Libraries(usedLibraries, unusedLibraries);
     }
@@ -0,0 +1,64 @@
+package me.bechberger.processor;
+
+import me.bechberger.runtime.Store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores and JAR indexes that the daemon ({@code serve}) keeps in memory between queries
+ * <p>
+ * A store is loaded again when its file changed (modification time, size or file key). The JAR indexes
+ * are content-addressed, so a changed JAR gets a new key and is analysed again on its next query.
+ * They also keep the keys of the outer JARs by path, so an unchanged JAR (same modification time, size and file key)
+ * is not digested again for every query.
+ */
+public class ProcessorCache {
+
+    private record CachedStore(FileTime lastModified, long size, Object fileKey, Store store) {
+
+        boolean isUpToDate(BasicFileAttributes attributes) {
+            return lastModified.equals(attributes.lastModifiedTime()) && size == attributes.size() &&
+                    Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    private final Map<Path, CachedStore> stores = new HashMap<>();
+    /** indexes by directory */
+    private final Map<Path, JarIndex> indexes = new ConcurrentHashMap<>();
+    private final JarIndex memoryIndex = new JarIndex();
+
+    /**
+     * Get the loaded store, loading it (again) if it is not cached or its file changed
+     * <p>
+     * The returned store is shared between queries, so it must not be modified.
+     */
+    public synchronized Store getStore(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        CachedStore cached = stores.get(path);
+        if (cached == null || !cached.isUpToDate(attributes)) {
+            cached = new CachedStore(attributes.lastModifiedTime(), attributes.size(), attributes.fileKey(),
+                    new Store().load(path));
+            stores.put(path, cached);
+        }
+        return cached.store;
+    }
+
+    /**
+     * @param directory directory of the persistent index, null for an index that is only kept in memory
+     */
+    public JarIndex getIndex(Path directory) {
+        if (directory == null) {
+            return memoryIndex;
+        }
+        return indexes.computeIfAbsent(directory.toAbsolutePath().normalize(), JarIndex::new);
+    }
+}
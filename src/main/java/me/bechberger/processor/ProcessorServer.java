@@ -0,0 +1,137 @@
+package me.bechberger.processor;
+
+import picocli.CommandLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Daemon that answers the commands of the {@link Processor} on a Unix domain socket,
+ * keeping the stores and the JAR index in memory ({@link ProcessorCache}), and the client that sends it a command
+ * <p>
+ * Protocol (in the format of {@link DataOutputStream}): the client sends its working directory, the number of
+ * arguments and the arguments, the daemon runs the command and answers with the exit code, the standard output
+ * and the standard error (both as length-prefixed UTF-8). Every query uses its own connection and thread.
+ */
+class ProcessorServer {
+
+    private final Path socket;
+    private final ProcessorCache cache;
+
+    ProcessorServer(Path socket, ProcessorCache cache) {
+        this.socket = socket;
+        this.cache = cache;
+    }
+
+    /** serve queries until the JVM is stopped */
+    void serve(PrintWriter log) throws IOException {
+        removeStaleSocket();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            socket.toFile().deleteOnExit();
+            log.println("Serving on " + socket);
+            log.flush();
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread thread = new Thread(() -> handle(client), "dead-code-query");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /** remove the socket file of a daemon that did not shut down properly */
+    private void removeStaleSocket() throws IOException {
+        if (!Files.exists(socket)) {
+            return;
+        }
+        if (isServing(socket)) {
+            throw new IOException("Another daemon is already serving on " + socket);
+        }
+        Files.delete(socket);
+    }
+
+    /** whether a daemon accepts connections on the socket */
+    private static boolean isServing(Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client; DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)))) {
+            Path workingDirectory = Path.of(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            StringWriter stdout = new StringWriter();
+            StringWriter stderr = new StringWriter();
+            CommandLine commandLine = new CommandLine(new Processor(cache));
+            // relative paths are relative to the client
+            commandLine.registerConverter(Path.class, workingDirectory::resolve);
+            commandLine.setOut(new PrintWriter(stdout, true));
+            commandLine.setErr(new PrintWriter(stderr, true));
+            int exitCode = commandLine.execute(args);
+            out.writeInt(exitCode);
+            writeString(out, stdout.toString());
+            writeString(out, stderr.toString());
+        } catch (IOException e) {
+            System.err.println("Could not answer a query: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send the command to the daemon and print its output
+     *
+     * @return exit code of the command
+     */
+    static int query(Path socket, String[] args, PrintWriter stdout, PrintWriter stderr) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out =
+                     new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeUTF(Path.of("").toAbsolutePath().toString());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            int exitCode = in.readInt();
+            stdout.print(readString(in));
+            stdout.flush();
+            stderr.print(readString(in));
+            stderr.flush();
+            return exitCode;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,111 @@
+package me.bechberger.processor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Buffer for a nested JAR that is kept in memory up to a threshold and spilled to a temporary file beyond it,
+ * so the heap usage per buffer is bounded, independent of the size of the JAR
+ * <p>
+ * The CRC and the size of the data are computed while it is written.
+ * {@link #close()} finishes writing, {@link #delete()} releases the buffer.
+ */
+final class SpillBuffer extends OutputStream {
+
+    static final int DEFAULT_THRESHOLD = 4 * 1024 * 1024;
+
+    /** exposes its internal array, to avoid copying it */
+    private static class Memory extends ByteArrayOutputStream {
+        Memory() {
+            super(8192);
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final int threshold;
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
+    /** null after spilling */
+    private Memory memory = new Memory();
+    private Path file;
+    private OutputStream fileOut;
+
+    SpillBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    SpillBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        size += len;
+        if (memory != null && memory.size() + len > threshold) {
+            spill();
+        }
+        if (memory != null) {
+            memory.write(b, off, len);
+        } else {
+            fileOut.write(b, off, len);
+        }
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("nested-jar", ".jar");
+        fileOut = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+        memory.writeTo(fileOut);
+        memory = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    long getCrc() {
+        return crc.getValue();
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /** read the written data, after closing the buffer */
+    InputStream inputStream() throws IOException {
+        return memory != null ? new ByteArrayInputStream(memory.buffer().array(), 0, memory.size()) :
+                Files.newInputStream(file);
+    }
+
+    /** open the written ZIP file in place, after closing the buffer */
+    ZipView openView() throws IOException {
+        return memory != null ? ZipView.of(memory.buffer()) : ZipView.open(file);
+    }
+
+    /** release the memory and delete the temporary file */
+    void delete() throws IOException {
+        memory = null;
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package me.bechberger.processor;
+
+import me.bechberger.runtime.BinaryStore;
+import me.bechberger.runtime.Store;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Merges store files with a k-way merge: the output contains one entry per class name, with the largest state
+ * of all inputs (used over loaded over not loaded), the report and delete flags of all of them
+ * and the first non-empty report message
+ * <p>
+ * The entries are merged in the order of the output: by class name for text stores ({@link #CLASS_NAME_ORDER}),
+ * in the order of the entries of the binary format for binary stores ({@link #BINARY_ORDER}).
+ * Text store files are sorted by class name when they are written by the agent or the commands, binary ones
+ * in the order of the binary format. Inputs that are already in the order of the merge are memory-mapped
+ * and read entry by entry while merging, so only the current entry of every input is kept in memory.
+ * Other inputs (like handwritten files) are split into sorted runs of bounded size in temporary files,
+ * which are then merged like the other inputs. The inputs are opened and checked in parallel.
+ */
+class StoreMerger {
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(Store.Entry entry) throws IOException;
+    }
+
+    /** order of the text store files */
+    static final Comparator<String> CLASS_NAME_ORDER = Comparator.naturalOrder();
+    /** order of the entries in binary store files */
+    static final Comparator<String> BINARY_ORDER = BinaryStore::compare;
+    /** maximum number of entries in a sorted run of an input that is not sorted */
+    static final int RUN_SIZE = 100_000;
+
+    /** entries of an input in the order of the merge */
+    private interface Cursor {
+        /** @return null at the end */
+        Store.Entry next();
+    }
+
+    /** reads the lines of a memory-mapped text store file */
+    private static class MappedTextCursor implements Cursor {
+        private final ByteBuffer buffer;
+        private byte[] scratch = new byte[256];
+        private int pos = 0;
+
+        MappedTextCursor(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /** @return null at the end, skips empty lines */
+        String nextLine() {
+            int limit = buffer.limit();
+            while (pos < limit) {
+                int start = pos;
+                int end = start;
+                while (end < limit && buffer.get(end) != '\n') {
+                    end++;
+                }
+                pos = end + 1;
+                if (end > start && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end > start) {
+                    if (end - start > scratch.length) {
+                        scratch = new byte[end - start];
+                    }
+                    buffer.get(start, scratch, 0, end - start);
+                    return new String(scratch, 0, end - start, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Store.Entry next() {
+            String line = nextLine();
+            return line == null ? null : Store.Entry.parse(line);
+        }
+    }
+
+    /** reads the entries of a memory-mapped binary store file in the order of the file */
+    private static class BinaryCursor implements Cursor {
+        private final BinaryStore store;
+        private int index = 0;
+
+        BinaryCursor(BinaryStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public Store.Entry next() {
+            return index < store.size() ? store.getEntry(index++) : null;
+        }
+    }
+
+    /** current entry of a cursor in the merge queue */
+    private static class Head {
+        final Cursor cursor;
+        /**
+         * index of the cursor (the inputs in order, the runs of an input in the order of the input),
+         * orders the entries of different cursors for the same class
+         */
+        final int input;
+        Store.Entry entry;
+
+        Head(Cursor cursor, int input, Store.Entry entry) {
+            this.cursor = cursor;
+            this.input = input;
+            this.entry = entry;
+        }
+    }
+
+    private final List<Path> inputs;
+    private final int parallelism;
+    private final Comparator<String> order;
+    private final int runSize;
+    /** temporary files of the sorted runs */
+    private final List<Path> runFiles = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param order {@link #CLASS_NAME_ORDER} or {@link #BINARY_ORDER}, the order of the output
+     */
+    StoreMerger(List<Path> inputs, int parallelism, Comparator<String> order) {
+        this(inputs, parallelism, order, RUN_SIZE);
+    }
+
+    StoreMerger(List<Path> inputs, int parallelism, Comparator<String> order, int runSize) {
+        this.inputs = inputs;
+        this.parallelism = Math.max(parallelism, 1);
+        this.order = order;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Merge the inputs and pass the merged entries to the consumer, in the order of the merge
+     */
+    void merge(EntryConsumer consumer) throws IOException {
+        try {
+            merge(openAll(), consumer);
+        } finally {
+            deleteRunFiles();
+        }
+    }
+
+    private void merge(List<Cursor> cursors, EntryConsumer consumer) throws IOException {
+        PriorityQueue<Head> queue = new PriorityQueue<>(Math.max(cursors.size(), 1),
+                Comparator.<Head, String>comparing(head -> head.entry.className, order)
+                        .thenComparingInt(head -> head.input));
+        for (int i = 0; i < cursors.size(); i++) {
+            Store.Entry first = cursors.get(i).next();
+            if (first != null) {
+                queue.add(new Head(cursors.get(i), i, first));
+            }
+        }
+        while (!queue.isEmpty()) {
+            Head head = queue.poll();
+            Store.Entry merged = head.entry;
+            advance(queue, head);
+            // entries of later inputs (or duplicates in the same input) for the same class, in the order of the inputs
+            while (!queue.isEmpty() && order.compare(queue.peek().entry.className, merged.className) == 0) {
+                Head other = queue.poll();
+                merged = merge(merged, other.entry);
+                advance(queue, other);
+            }
+            consumer.accept(merged);
+        }
+    }
+
+    private static void advance(PriorityQueue<Head> queue, Head head) {
+        head.entry = head.cursor.next();
+        if (head.entry != null) {
+            queue.add(head);
+        }
+    }
+
+    static Store.Entry merge(Store.Entry a, Store.Entry b) {
+        Store.State state = a.getState().compareTo(b.getState()) >= 0 ? a.getState() : b.getState();
+        return new Store.Entry(a.className, state, a.isReport() || b.isReport(), a.delete || b.delete,
+                a.reportMessage.isEmpty() ? b.reportMessage : a.reportMessage);
+    }
+
+    /** cursors of all inputs, in the order of the inputs */
+    private List<Cursor> openAll() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<List<Cursor>>> futures = new ArrayList<>();
+            for (Path input : inputs) {
+                futures.add(executor.submit(() -> open(input)));
+            }
+            List<Cursor> cursors = new ArrayList<>();
+            for (Future<List<Cursor>> future : futures) {
+                cursors.addAll(future.get());
+            }
+            return cursors;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** @return the input as a single cursor if it is in the order of the merge, its sorted runs otherwise */
+    private List<Cursor> open(Path input) throws IOException {
+        if (BinaryStore.isBinary(input)) {
+            BinaryStore store = BinaryStore.open(input, false);
+            if (order == BINARY_ORDER || isSorted(store)) {
+                return List.of(new BinaryCursor(store));
+            }
+            return sortedRuns(new BinaryCursor(store));
+        }
+        ByteBuffer buffer = map(input);
+        if (isSorted(new MappedTextCursor(buffer.duplicate()))) {
+            return List.of(new MappedTextCursor(buffer));
+        }
+        return sortedRuns(new MappedTextCursor(buffer));
+    }
+
+    /**
+     * Split the entries into runs of at most {@link #runSize} entries, sort them (keeping the order of entries
+     * for the same class) and write them into temporary text store files
+     */
+    private List<Cursor> sortedRuns(Cursor cursor) throws IOException {
+        List<Cursor> runs = new ArrayList<>();
+        List<Store.Entry> run = new ArrayList<>();
+        Store.Entry entry = cursor.next();
+        while (entry != null) {
+            run.clear();
+            for (; entry != null && run.size() < runSize; entry = cursor.next()) {
+                run.add(entry);
+            }
+            run.sort(Comparator.comparing(e -> e.className, order));
+            Path file = Files.createTempFile("store-run", ".txt");
+            runFiles.add(file);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+                for (Store.Entry e : run) {
+                    out.write(e.toString().getBytes(StandardCharsets.UTF_8));
+                    out.write('\n');
+                }
+            }
+            runs.add(new MappedTextCursor(map(file)));
+        }
+        return runs;
+    }
+
+    private void deleteRunFiles() {
+        for (Path file : runFiles) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // the file might still be mapped (on Windows)
+                file.toFile().deleteOnExit();
+            }
+        }
+        runFiles.clear();
+    }
+
+    /** whether the class names (the second column) are in the order of the merge, only creates strings for the lines */
+    private boolean isSorted(MappedTextCursor cursor) {
+        String previous = null;
+        for (String line = cursor.nextLine(); line != null; line = cursor.nextLine()) {
+            int nameStart = line.indexOf(' ') + 1;
+            int nameEnd = line.indexOf(' ', nameStart);
+            String className = line.substring(nameStart, nameEnd == -1 ? line.length() : nameEnd);
+            if (previous != null && order.compare(previous, className) > 0) {
+                return false;
+            }
+            previous = className;
+        }
+        return true;
+    }
+
+    /** whether the class names are in the order of the merge, only decodes the names */
+    private boolean isSorted(BinaryStore store) {
+        for (int i = 1; i < store.size(); i++) {
+            if (order.compare(store.getClassName(i - 1), store.getClassName(i)) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Store file " + file + " is too large");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
@@ -4,7 +4,7 @@ import java.nio.file.Path;
 import java.util.jar.JarEntry;
 
 public final class Util {
-    static String libraryNameForPath(String path) {
+    public static String libraryNameForPath(String path) {
         String name = Path.of(path).getFileName().toString();
         if (name.endsWith(".jar")) {
             String pre = name.substring(0, name.length() - 4);
@@ -15,7 +15,10 @@ public final class Util {
     }
 
     public static String classNameForJarEntry(JarEntry entry) {
-        String name = entry.getName();
+        return classNameForEntryName(entry.getName());
+    }
+
+    public static String classNameForEntryName(String name) {
         return name.substring(0, name.length() - 6).replace('/', '.').replace("BOOT-INF.classes.", "");
     }
 
@@ -0,0 +1,336 @@
+package me.bechberger.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view on a ZIP file that only parses its central directory and reads the entries in place,
+ * either from a file or from a buffer (like a STORED JAR nested in another JAR)
+ * <p>
+ * Nothing is extracted, data of larger entries is memory-mapped.
+ */
+final class ZipView implements AutoCloseable {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+    private static final int ZIP64_END_LOCATOR = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    /** entries larger than this are mapped instead of read into the heap */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    /** large files are digested in mapped chunks of this size */
+    private static final long DIGEST_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Entry of the central directory
+     * <p>
+     * The remaining header fields are only kept so that {@link ZipWriter#copy} can write them unchanged.
+     *
+     * @param dosTime            modification time in the MS-DOS format (date in the upper 16 bits)
+     * @param localHeaderOffset  offset of the local header, relative to the start of the view
+     * @param versionMadeBy      host system (upper byte) and ZIP version of the creator
+     * @param externalAttributes attributes of the host system, like the unix file mode in the upper 16 bits
+     * @param extra              extra field of the central directory, without the ZIP64 field
+     */
+    record Entry(String name, int method, int dosTime, long crc, long compressedSize, long size,
+                 long localHeaderOffset, int flags, int versionMadeBy, int versionNeeded, int internalAttributes,
+                 int externalAttributes, byte[] extra, byte[] comment) {
+        boolean isStored() {
+            return method == STORED;
+        }
+    }
+
+    /** null if this is a view on a buffer */
+    private final FileChannel channel;
+    /** the whole ZIP file, null if this is a view on a file */
+    private final ByteBuffer buffer;
+    /** length of data prepended to the ZIP, e.g. a launch script */
+    private long base;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private ZipView(FileChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer == null ? null : buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static ZipView open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ZipView view = new ZipView(channel, null);
+            view.readCentralDirectory();
+            return view;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static ZipView of(ByteBuffer buffer) throws IOException {
+        ZipView view = new ZipView(null, buffer);
+        view.readCentralDirectory();
+        return view;
+    }
+
+    List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    private long length() throws IOException {
+        return channel != null ? channel.size() : buffer.capacity();
+    }
+
+    /** read a region, the result is little endian and positioned at 0 */
+    private ByteBuffer read(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > length()) {
+            throw new ZipException("Invalid offset " + offset + " or length " + length);
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new ZipException("Entry is too large: " + length);
+        }
+        ByteBuffer result;
+        if (buffer != null) {
+            result = buffer.slice((int) offset, (int) length);
+        } else if (length > MAP_THRESHOLD) {
+            result = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } else {
+            result = ByteBuffer.allocate((int) length);
+            while (result.hasRemaining()) {
+                if (channel.read(result, offset + result.position()) < 0) {
+                    throw new ZipException("Unexpected end of file");
+                }
+            }
+            result.flip();
+        }
+        return result.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long length = length();
+        int tailLength = (int) Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(length - tailLength, tailLength);
+        int endPos = -1;
+        for (int i = tailLength - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos == -1) {
+            throw new ZipException("No end of central directory found");
+        }
+        long endOffset = length - tailLength + endPos;
+        long cdSize = Integer.toUnsignedLong(tail.getInt(endPos + 12));
+        long cdOffset = Integer.toUnsignedLong(tail.getInt(endPos + 16));
+        long cdEnd = endOffset;
+        if ((cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL || tail.getShort(endPos + 10) == -1) && endOffset >= 20) {
+            ByteBuffer locator = read(endOffset - 20, 20);
+            if (locator.getInt(0) == ZIP64_END_LOCATOR) {
+                long zip64EndOffset = locator.getLong(8);
+                // the locator offset does not include any prepended data
+                long zip64EndPos = endOffset - 20 - 56;
+                ByteBuffer zip64End = read(zip64EndPos, 56);
+                if (zip64End.getInt(0) != ZIP64_END_HEADER) {
+                    zip64End = read(zip64EndOffset, 56);
+                    zip64EndPos = zip64EndOffset;
+                    if (zip64End.getInt(0) != ZIP64_END_HEADER) {
+                        throw new ZipException("Invalid ZIP64 end of central directory");
+                    }
+                }
+                cdSize = zip64End.getLong(40);
+                cdOffset = zip64End.getLong(48);
+                cdEnd = zip64EndPos;
+            }
+        }
+        base = cdEnd - cdSize - cdOffset;
+        if (base < 0) {
+            throw new ZipException("Invalid central directory offset");
+        }
+        ByteBuffer cd = read(base + cdOffset, cdSize);
+        int pos = 0;
+        while (pos + 46 <= cdSize) {
+            if (cd.getInt(pos) != CENTRAL_HEADER) {
+                throw new ZipException("Invalid central directory header at " + pos);
+            }
+            int versionMadeBy = Short.toUnsignedInt(cd.getShort(pos + 4));
+            int versionNeeded = Short.toUnsignedInt(cd.getShort(pos + 6));
+            int flags = Short.toUnsignedInt(cd.getShort(pos + 8));
+            int method = Short.toUnsignedInt(cd.getShort(pos + 10));
+            int dosTime = cd.getInt(pos + 12);
+            long crc = Integer.toUnsignedLong(cd.getInt(pos + 16));
+            long compressedSize = Integer.toUnsignedLong(cd.getInt(pos + 20));
+            long size = Integer.toUnsignedLong(cd.getInt(pos + 24));
+            int nameLength = Short.toUnsignedInt(cd.getShort(pos + 28));
+            int extraLength = Short.toUnsignedInt(cd.getShort(pos + 30));
+            int commentLength = Short.toUnsignedInt(cd.getShort(pos + 32));
+            int internalAttributes = Short.toUnsignedInt(cd.getShort(pos + 36));
+            int externalAttributes = cd.getInt(pos + 38);
+            long localHeaderOffset = Integer.toUnsignedLong(cd.getInt(pos + 42));
+            byte[] nameBytes = new byte[nameLength];
+            cd.get(pos + 46, nameBytes);
+            // read the ZIP64 extra field, it only contains the values that do not fit into 32 bits
+            int extraPos = pos + 46 + nameLength;
+            int extraEnd = extraPos + extraLength;
+            while (extraPos + 4 <= extraEnd) {
+                int id = Short.toUnsignedInt(cd.getShort(extraPos));
+                int dataSize = Short.toUnsignedInt(cd.getShort(extraPos + 2));
+                if (id == ZIP64_EXTRA) {
+                    int valuePos = extraPos + 4;
+                    if (size == 0xFFFFFFFFL) {
+                        size = cd.getLong(valuePos);
+                        valuePos += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = cd.getLong(valuePos);
+                        valuePos += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL) {
+                        localHeaderOffset = cd.getLong(valuePos);
+                    }
+                }
+                extraPos += 4 + dataSize;
+            }
+            byte[] comment = new byte[commentLength];
+            cd.get(pos + 46 + nameLength + extraLength, comment);
+            entries.add(new Entry(new String(nameBytes, StandardCharsets.UTF_8), method, dosTime, crc, compressedSize,
+                    size, base + localHeaderOffset, flags, versionMadeBy, versionNeeded, internalAttributes,
+                    externalAttributes, withoutZip64Extra(cd, pos + 46 + nameLength, extraLength), comment));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /** copy of the extra field without the ZIP64 field, whose values are only valid for the original offsets */
+    private static byte[] withoutZip64Extra(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer result = ByteBuffer.allocate(length);
+        int pos = offset;
+        int end = offset + length;
+        while (pos + 4 <= end) {
+            int id = Short.toUnsignedInt(buffer.getShort(pos));
+            int fieldLength = Math.min(4 + Short.toUnsignedInt(buffer.getShort(pos + 2)), end - pos);
+            if (id != ZIP64_EXTRA) {
+                result.put(buffer.slice(pos, fieldLength));
+            }
+            pos += fieldLength;
+        }
+        return Arrays.copyOf(result.array(), result.position());
+    }
+
+    private ByteBuffer localHeader(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset(), 30);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new ZipException("Invalid local header for " + entry.name());
+        }
+        return header;
+    }
+
+    /** extra field of the local header, without the ZIP64 field */
+    byte[] localExtra(Entry entry) throws IOException {
+        ByteBuffer header = localHeader(entry);
+        int extraLength = Short.toUnsignedInt(header.getShort(28));
+        ByteBuffer extra = read(entry.localHeaderOffset() + 30 + Short.toUnsignedInt(header.getShort(26)),
+                extraLength);
+        return withoutZip64Extra(extra, 0, extraLength);
+    }
+
+    /** offset of the (compressed) data of the entry */
+    private long dataOffset(Entry entry) throws IOException {
+        ByteBuffer header = localHeader(entry);
+        return entry.localHeaderOffset() + 30 + Short.toUnsignedInt(header.getShort(26)) +
+                Short.toUnsignedInt(header.getShort(28));
+    }
+
+    /** feed the whole file (or buffer), including prepended data, to the digest */
+    void digest(MessageDigest digest) throws IOException {
+        long length = length();
+        for (long offset = 0; offset < length; offset += DIGEST_CHUNK_SIZE) {
+            digest.update(read(offset, Math.min(DIGEST_CHUNK_SIZE, length - offset)));
+        }
+    }
+
+    /** the raw (possibly compressed) data of the entry, without copying it */
+    ByteBuffer data(Entry entry) throws IOException {
+        return read(dataOffset(entry), entry.compressedSize());
+    }
+
+    /** view on a nested STORED ZIP file, without copying it */
+    ZipView nested(Entry entry) throws IOException {
+        if (!entry.isStored()) {
+            throw new ZipException("Nested ZIP file " + entry.name() + " is not stored");
+        }
+        return of(data(entry));
+    }
+
+    /** stream of the uncompressed data of the entry */
+    InputStream inputStream(Entry entry) throws IOException {
+        InputStream in = new ByteBufferInputStream(data(entry));
+        return switch (entry.method()) {
+            case STORED -> in;
+            case DEFLATED -> new InflaterInputStream(in, new Inflater(true)) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+            default -> throw new ZipException("Unsupported compression method " + entry.method() + " for " +
+                    entry.name());
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? Byte.toUnsignedInt(buffer.get()) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
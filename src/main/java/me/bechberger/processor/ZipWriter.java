@@ -0,0 +1,298 @@
+package me.bechberger.processor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP file, copying the compressed data of unmodified entries (read via {@link ZipView}) verbatim,
+ * so only new or modified entries are compressed
+ * <p>
+ * The sizes and the CRC of every entry are written into its local header (no data descriptors),
+ * ZIP64 records are only written if the sizes, offsets or the number of entries require them.
+ * Copied entries keep their flags, extra fields, attributes (like unix file modes) and comments,
+ * only their offsets and ZIP64 fields are rewritten.
+ */
+final class ZipWriter implements AutoCloseable {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+    private static final int ZIP64_END_LOCATOR = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Entry whose (compressed) data is already known, can be prepared on any thread
+     *
+     * @param dosTime modification time in the MS-DOS format (date in the upper 16 bits)
+     */
+    record PreparedEntry(String name, int method, int dosTime, long crc, long size, byte[] compressedData) {
+    }
+
+    /** header fields that new entries share and copied entries take from the original */
+    private record Header(int flags, int versionMadeBy, int versionNeeded, int internalAttributes,
+                          int externalAttributes, byte[] localExtra, byte[] centralExtra, byte[] comment) {
+        static final Header NEW = new Header(UTF8_FLAG, VERSION, VERSION, 0, 0, EMPTY, EMPTY, EMPTY);
+
+        static Header of(ZipView.Entry entry, byte[] localExtra) {
+            // the sizes are in the local header, the data descriptor is dropped
+            int flags = entry.flags() & ~DATA_DESCRIPTOR_FLAG;
+            if (!isAscii(entry.name())) {
+                // the name was decoded as UTF-8 and is encoded as UTF-8 again
+                flags |= UTF8_FLAG;
+            }
+            return new Header(flags, entry.versionMadeBy(), entry.versionNeeded(), entry.internalAttributes(),
+                    entry.externalAttributes(), localExtra, entry.extra(), entry.comment());
+        }
+
+        private static boolean isAscii(String name) {
+            return name.chars().allMatch(c -> c < 0x80);
+        }
+
+        int versionMadeBy(boolean zip64) {
+            // the upper byte is the host system
+            return zip64 && (versionMadeBy & 0xFF) < ZIP64_VERSION ? (versionMadeBy & 0xFF00) | ZIP64_VERSION :
+                    versionMadeBy;
+        }
+
+        int versionNeeded(boolean zip64) {
+            return zip64 ? Math.max(ZIP64_VERSION, versionNeeded) : versionNeeded;
+        }
+    }
+
+    private record CentralEntry(byte[] name, Header header, int method, int dosTime, long crc, long compressedSize,
+                                long size, long offset) {
+    }
+
+    private final OutputStream out;
+    private long position = 0;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private boolean closed = false;
+
+    ZipWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+    }
+
+    /** compress the data with DEFLATE */
+    static PreparedEntry prepare(String name, int dosTime, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return new PreparedEntry(name, ZipView.DEFLATED, dosTime, crc.getValue(), data.length,
+                    compressed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** convert a Java time stamp into the MS-DOS format, like the JDK does */
+    static int dosTime(long javaTime) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(javaTime), ZoneId.systemDefault());
+        int year = time.getYear() - 1980;
+        if (year < 0) {
+            return (1 << 21) | (1 << 16);
+        }
+        return year << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16 | time.getHour() << 11 |
+                time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /** copy the entry with its compressed data and its header fields, without decompressing it */
+    void copy(ZipView view, ZipView.Entry entry) throws IOException {
+        ByteBuffer data = view.data(entry);
+        writeLocalHeader(entry.name(), Header.of(entry, view.localExtra(entry)), entry.method(), entry.dosTime(),
+                entry.crc(), entry.compressedSize(), entry.size());
+        if (data.hasArray()) {
+            write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] buffer = new byte[Math.min(64 * 1024, data.remaining())];
+            while (data.hasRemaining()) {
+                int length = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, length);
+                write(buffer, 0, length);
+            }
+        }
+    }
+
+    void write(PreparedEntry entry) throws IOException {
+        writeLocalHeader(entry.name, Header.NEW, entry.method, entry.dosTime, entry.crc, entry.compressedData.length,
+                entry.size);
+        write(entry.compressedData, 0, entry.compressedData.length);
+    }
+
+    /** write an uncompressed entry whose CRC and size are already known (like a nested JAR) */
+    void writeStored(String name, int dosTime, long crc, long size, InputStream data) throws IOException {
+        writeLocalHeader(name, Header.NEW, ZipView.STORED, dosTime, crc, size, size);
+        byte[] buffer = new byte[64 * 1024];
+        long written = 0;
+        int length;
+        while ((length = data.read(buffer)) > 0) {
+            write(buffer, 0, length);
+            written += length;
+        }
+        if (written != size) {
+            throw new ZipException("Invalid size for entry " + name + ": expected " + size + " but got " + written);
+        }
+    }
+
+    private void writeLocalHeader(String name, Header fields, int method, int dosTime, long crc, long compressedSize,
+                                  long size) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        int extraLength = (zip64 ? 20 : 0) + fields.localExtra.length;
+        if (extraLength > 0xFFFF) {
+            throw new ZipException("Extra field of " + name + " is too large");
+        }
+        ByteBuffer header = buffer(30 + nameBytes.length + extraLength);
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) fields.versionNeeded(zip64));
+        header.putShort((short) fields.flags);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) extraLength);
+        header.put(nameBytes);
+        if (zip64) {
+            header.putShort((short) ZIP64_EXTRA);
+            header.putShort((short) 16);
+            header.putLong(size);
+            header.putLong(compressedSize);
+        }
+        header.put(fields.localExtra);
+        entries.add(new CentralEntry(nameBytes, fields, method, dosTime, crc, compressedSize, size, position));
+        write(header.array(), 0, header.position());
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        position += length;
+    }
+
+    /** write the central directory and close the underlying stream */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (out) {
+            long cdOffset = position;
+            for (CentralEntry entry : entries) {
+                writeCentralHeader(entry);
+            }
+            long cdSize = position - cdOffset;
+            boolean zip64 = entries.size() >= 0xFFFF || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC;
+            if (zip64) {
+                long zip64EndOffset = position;
+                ByteBuffer end = buffer(56 + 20);
+                end.putInt(ZIP64_END_HEADER);
+                end.putLong(44); // size of the remaining record
+                end.putShort((short) ZIP64_VERSION);
+                end.putShort((short) ZIP64_VERSION);
+                end.putInt(0); // disk
+                end.putInt(0); // disk with the central directory
+                end.putLong(entries.size());
+                end.putLong(entries.size());
+                end.putLong(cdSize);
+                end.putLong(cdOffset);
+                end.putInt(ZIP64_END_LOCATOR);
+                end.putInt(0);
+                end.putLong(zip64EndOffset);
+                end.putInt(1); // number of disks
+                write(end.array(), 0, end.position());
+            }
+            ByteBuffer end = buffer(22);
+            end.putInt(END_HEADER);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) (zip64 ? 0xFFFF : entries.size()));
+            end.putShort((short) (zip64 ? 0xFFFF : entries.size()));
+            end.putInt((int) (zip64 ? ZIP64_MAGIC : cdSize));
+            end.putInt((int) (zip64 ? ZIP64_MAGIC : cdOffset));
+            end.putShort((short) 0); // comment length
+            write(end.array(), 0, end.position());
+        }
+    }
+
+    private void writeCentralHeader(CentralEntry entry) throws IOException {
+        boolean sizeOverflow = entry.size >= ZIP64_MAGIC;
+        boolean compressedSizeOverflow = entry.compressedSize >= ZIP64_MAGIC;
+        boolean offsetOverflow = entry.offset >= ZIP64_MAGIC;
+        int zip64Length = (sizeOverflow ? 8 : 0) + (compressedSizeOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+        boolean zip64 = zip64Length > 0;
+        Header fields = entry.header;
+        int extraLength = (zip64 ? 4 + zip64Length : 0) + fields.centralExtra.length;
+        if (extraLength > 0xFFFF) {
+            throw new ZipException("Extra field of " + new String(entry.name, StandardCharsets.UTF_8) +
+                    " is too large");
+        }
+        ByteBuffer header = buffer(46 + entry.name.length + extraLength + fields.comment.length);
+        header.putInt(CENTRAL_HEADER);
+        header.putShort((short) fields.versionMadeBy(zip64));
+        header.putShort((short) fields.versionNeeded(zip64));
+        header.putShort((short) fields.flags);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) (compressedSizeOverflow ? ZIP64_MAGIC : entry.compressedSize));
+        header.putInt((int) (sizeOverflow ? ZIP64_MAGIC : entry.size));
+        header.putShort((short) entry.name.length);
+        header.putShort((short) extraLength);
+        header.putShort((short) fields.comment.length);
+        header.putShort((short) 0); // disk
+        header.putShort((short) fields.internalAttributes);
+        header.putInt(fields.externalAttributes);
+        header.putInt((int) (offsetOverflow ? ZIP64_MAGIC : entry.offset));
+        header.put(entry.name);
+        if (zip64) {
+            header.putShort((short) ZIP64_EXTRA);
+            header.putShort((short) zip64Length);
+            if (sizeOverflow) {
+                header.putLong(entry.size);
+            }
+            if (compressedSizeOverflow) {
+                header.putLong(entry.compressedSize);
+            }
+            if (offsetOverflow) {
+                header.putLong(entry.offset);
+            }
+        }
+        header.put(fields.centralExtra);
+        header.put(fields.comment);
+        write(header.array(), 0, header.position());
+    }
+}
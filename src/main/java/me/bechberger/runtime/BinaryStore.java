@@ -0,0 +1,453 @@
+package me.bechberger.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read-only view of a store file in the binary format, backed by a memory map,
+ * entries are only decoded when they are accessed
+ * <p>
+ * Format (version 1, big endian):
+ * <ul>
+ *     <li>header: magic, version, number of entries, packages, strings and wildcard entries,
+ *     followed by the offsets of the sections</li>
+ *     <li>packages (sorted): length of the prefix shared with the previous package name, length and UTF-8 bytes
+ *     of the rest (front coding), index of the first entry of the package</li>
+ *     <li>entries (sorted by package and then by the UTF-8 bytes of the simple name): offset and length of the
+ *     simple name in the names section, flags (state, report and delete), index of the report message</li>
+ *     <li>names: UTF-8 simple names of the classes</li>
+ *     <li>strings: offsets into the string data and the UTF-8 string data (report messages, 0 is the empty string)</li>
+ *     <li>wildcards: indexes of the entries for multiple classes (like {@code com.foo.*})</li>
+ * </ul>
+ */
+public class BinaryStore {
+
+    static final int MAGIC = 0xDEADC0DE;
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 48;
+    private static final int ENTRY_SIZE = 12;
+    private static final int STATE_MASK = 0x3;
+    private static final int REPORT_FLAG = 0x4;
+    private static final int DELETE_FLAG = 0x8;
+
+    private final ByteBuffer buffer;
+    /** map the stored state to the report flag and set the state to not loaded (like the text loading) */
+    private final boolean mapToReport;
+    private final int entryCount;
+    private final int entriesOffset;
+    private final int namesOffset;
+    private final int stringsOffset;
+    private final int stringDataOffset;
+    private final int[] wildcards;
+    private final String[] packages;
+    /** first entry of every package, with the number of entries as the last element */
+    private final int[] packageFirstEntry;
+    private final Map<String, Integer> packageIndexes;
+
+    private BinaryStore(ByteBuffer buffer, boolean mapToReport) throws IOException {
+        this.buffer = buffer;
+        this.mapToReport = mapToReport;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary store file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary store version " + version);
+        }
+        entryCount = buffer.getInt(8);
+        int packageCount = buffer.getInt(12);
+        int wildcardCount = buffer.getInt(20);
+        int packagesOffset = buffer.getInt(24);
+        entriesOffset = buffer.getInt(28);
+        namesOffset = buffer.getInt(32);
+        stringsOffset = buffer.getInt(36);
+        stringDataOffset = buffer.getInt(40);
+        int wildcardsOffset = buffer.getInt(44);
+
+        packages = new String[packageCount];
+        packageFirstEntry = new int[packageCount + 1];
+        packageIndexes = new HashMap<>(packageCount * 2);
+        byte[] previous = new byte[0];
+        int pos = packagesOffset;
+        for (int i = 0; i < packageCount; i++) {
+            int shared = buffer.getShort(pos) & 0xFFFF;
+            int suffixLength = buffer.getShort(pos + 2) & 0xFFFF;
+            byte[] name = Arrays.copyOf(previous, shared + suffixLength);
+            buffer.get(pos + 4, name, shared, suffixLength);
+            packageFirstEntry[i] = buffer.getInt(pos + 4 + suffixLength);
+            packages[i] = new String(name, StandardCharsets.UTF_8);
+            packageIndexes.put(packages[i], i);
+            previous = name;
+            pos += 8 + suffixLength;
+        }
+        packageFirstEntry[packageCount] = entryCount;
+        wildcards = new int[wildcardCount];
+        for (int i = 0; i < wildcardCount; i++) {
+            wildcards[i] = buffer.getInt(wildcardsOffset + i * 4);
+        }
+    }
+
+    /** check the magic of the file, to support text and binary store files everywhere */
+    public static boolean isBinary(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] magic = in.readNBytes(4);
+            return magic.length == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+    }
+
+    public static BinaryStore open(Path file, boolean mapToReport) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Binary store file " + file + " is too large");
+            }
+            return new BinaryStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), mapToReport);
+        }
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    /** indexes of the entries for multiple classes */
+    public int[] getWildcardIndexes() {
+        return wildcards;
+    }
+
+    /**
+     * @return index of the entry for the class, or -1 if there is none
+     */
+    public int indexOf(String className) {
+        int dot = className.lastIndexOf('.');
+        Integer packageIndex = packageIndexes.get(dot == -1 ? "" : className.substring(0, dot));
+        if (packageIndex == null) {
+            return -1;
+        }
+        byte[] name = className.substring(dot + 1).getBytes(StandardCharsets.UTF_8);
+        int low = packageFirstEntry[packageIndex];
+        int high = packageFirstEntry[packageIndex + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** compare the simple name of the entry with the passed name (unsigned bytes) */
+    private int compareName(int index, byte[] name) {
+        int entry = entriesOffset + index * ENTRY_SIZE;
+        int offset = namesOffset + buffer.getInt(entry);
+        int length = buffer.getShort(entry + 4) & 0xFFFF;
+        for (int i = 0; i < Math.min(length, name.length); i++) {
+            int cmp = Integer.compare(buffer.get(offset + i) & 0xFF, name[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, name.length);
+    }
+
+    private int flags(int index) {
+        return buffer.get(entriesOffset + index * ENTRY_SIZE + 6) & 0xFF;
+    }
+
+    public String getClassName(int index) {
+        int packageIndex = Arrays.binarySearch(packageFirstEntry, index);
+        if (packageIndex < 0) {
+            packageIndex = -packageIndex - 2;
+        }
+        int entry = entriesOffset + index * ENTRY_SIZE;
+        byte[] name = new byte[buffer.getShort(entry + 4) & 0xFFFF];
+        buffer.get(namesOffset + buffer.getInt(entry), name);
+        String simpleName = new String(name, StandardCharsets.UTF_8);
+        return packages[packageIndex].isEmpty() ? simpleName : packages[packageIndex] + "." + simpleName;
+    }
+
+    public Store.State getState(int index) {
+        return mapToReport ? Store.State.NOT_LOADED : Store.State.values()[flags(index) & STATE_MASK];
+    }
+
+    public boolean isReport(int index) {
+        if (mapToReport) {
+            return Store.State.values()[flags(index) & STATE_MASK] != Store.State.USED;
+        }
+        return (flags(index) & REPORT_FLAG) != 0;
+    }
+
+    public boolean isDelete(int index) {
+        return (flags(index) & DELETE_FLAG) != 0;
+    }
+
+    public String getReportMessage(int index) {
+        int stringIndex = buffer.getInt(entriesOffset + index * ENTRY_SIZE + 8);
+        if (stringIndex == 0) {
+            return "";
+        }
+        int start = buffer.getInt(stringsOffset + stringIndex * 4);
+        byte[] bytes = new byte[buffer.getInt(stringsOffset + (stringIndex + 1) * 4) - start];
+        buffer.get(stringDataOffset + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** decode the entry, the returned entry is not backed by the file */
+    public Store.Entry getEntry(int index) {
+        return new Store.Entry(getClassName(index), getState(index), isReport(index), isDelete(index),
+                getReportMessage(index));
+    }
+
+    /**
+     * Compare class names in the order of the entries in the binary format: by package and then by simple name,
+     * both by their UTF-8 bytes (which is the order of their code points)
+     */
+    public static int compare(String a, String b) {
+        int aDot = Math.max(a.lastIndexOf('.'), 0);
+        int bDot = Math.max(b.lastIndexOf('.'), 0);
+        int cmp = compareCodePoints(a, 0, aDot, b, 0, bDot);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return compareCodePoints(a, a.lastIndexOf('.') + 1, a.length(), b, b.lastIndexOf('.') + 1, b.length());
+    }
+
+    /** compare the ranges in the order of their code points, without decoding them */
+    private static int compareCodePoints(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+        int length = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(aStart + i);
+            char y = b.charAt(bStart + i);
+            if (x != y) {
+                return codePointOrder(x) - codePointOrder(y);
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    /** move the surrogates above the other UTF-16 units, so that the chars compare like the code points */
+    private static int codePointOrder(char c) {
+        return c >= 0xE000 ? c - 0x800 : c >= 0xD800 ? c + 0x2000 : c;
+    }
+
+    /**
+     * Write the entries in the binary format
+     */
+    public static void write(Collection<Store.Entry> entries, OutputStream out) throws IOException {
+        List<Store.Entry> sorted = new ArrayList<>(entries);
+        sorted.sort((a, b) -> compare(a.className, b.className));
+        // the entries are in memory anyway
+        try (Writer writer = new Writer(Integer.MAX_VALUE)) {
+            for (Store.Entry entry : sorted) {
+                writer.add(entry);
+            }
+            writer.writeTo(out);
+        }
+    }
+
+    /**
+     * Section of the file whose size is only known at the end, kept in memory up to a threshold
+     * and spilled to a temporary file beyond it
+     */
+    private static class Section extends OutputStream {
+        private final int threshold;
+        /** null after spilling */
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(8192);
+        private Path file;
+        private OutputStream fileOut;
+        private long size = 0;
+
+        Section(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (memory != null && memory.size() + (long) len > threshold) {
+                file = Files.createTempFile("binary-store", ".section");
+                fileOut = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            (memory != null ? memory : fileOut).write(b, off, len);
+            size += len;
+        }
+
+        long size() {
+            return size;
+        }
+
+        void copyTo(OutputStream out) throws IOException {
+            if (memory != null) {
+                memory.writeTo(out);
+            } else {
+                fileOut.flush();
+                Files.copy(file, out);
+            }
+        }
+
+        /** release the memory and delete the temporary file */
+        void delete() throws IOException {
+            memory = null;
+            if (file != null) {
+                fileOut.close();
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Writes a store in the binary format from entries that are added in the order of the format
+     * (see {@link #compare}), without keeping them in memory
+     * <p>
+     * The entry table and the names are kept in sections that spill to temporary files, only the packages,
+     * the distinct report messages and the indexes of the wildcard entries are kept in memory
+     * (like when the file is read).
+     */
+    public static class Writer implements Closeable {
+        static final int SPILL_THRESHOLD = 8 * 1024 * 1024;
+
+        private final ByteArrayOutputStream packages = new ByteArrayOutputStream();
+        private final DataOutputStream packageOut = new DataOutputStream(packages);
+        private final Section entryTable;
+        private final DataOutputStream entryOut;
+        private final Section names;
+        private final Map<String, Integer> stringIndexes = new LinkedHashMap<>();
+        private final List<Integer> wildcards = new ArrayList<>();
+        private int entryCount = 0;
+        private int packageCount = 0;
+        private byte[] previousPackage = null;
+        private String previousClassName = null;
+
+        public Writer() {
+            this(SPILL_THRESHOLD);
+        }
+
+        Writer(int threshold) {
+            entryTable = new Section(threshold);
+            entryOut = new DataOutputStream(new BufferedOutputStream(entryTable, 64 * 1024));
+            names = new Section(threshold);
+            stringIndexes.put("", 0);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the entry is not after the previous one in the order of the format
+         */
+        public void add(Store.Entry entry) throws IOException {
+            if (previousClassName != null && compare(previousClassName, entry.className) >= 0) {
+                throw new IllegalArgumentException("Entry " + entry.className + " is not after " + previousClassName +
+                        " in the order of the binary format");
+            }
+            previousClassName = entry.className;
+            int dot = entry.className.lastIndexOf('.');
+            byte[] packageName = (dot == -1 ? "" : entry.className.substring(0, dot)).getBytes(StandardCharsets.UTF_8);
+            byte[] simpleName = entry.className.substring(dot + 1).getBytes(StandardCharsets.UTF_8);
+            if (previousPackage == null || !Arrays.equals(previousPackage, packageName)) {
+                int shared = previousPackage == null ? 0 : Math.max(0, Arrays.mismatch(previousPackage, packageName));
+                checkLength(packageName.length);
+                packageOut.writeShort(shared);
+                packageOut.writeShort(packageName.length - shared);
+                packageOut.write(packageName, shared, packageName.length - shared);
+                packageOut.writeInt(entryCount);
+                packageCount++;
+                previousPackage = packageName;
+            }
+            checkLength(simpleName.length);
+            if (names.size() + simpleName.length > Integer.MAX_VALUE) {
+                throw new IOException("Store is too large for the binary format");
+            }
+            entryOut.writeInt((int) names.size());
+            entryOut.writeShort(simpleName.length);
+            entryOut.writeByte(entry.getState().ordinal() | (entry.isReport() ? REPORT_FLAG : 0) |
+                    (entry.delete ? DELETE_FLAG : 0));
+            entryOut.writeByte(0);
+            entryOut.writeInt(stringIndexes.computeIfAbsent(entry.reportMessage, m -> stringIndexes.size()));
+            names.write(simpleName);
+            if (entry.className.endsWith("*")) {
+                wildcards.add(entryCount);
+            }
+            entryCount++;
+        }
+
+        /** write the file, after all entries are added */
+        public void writeTo(OutputStream out) throws IOException {
+            entryOut.flush();
+            ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+            ByteArrayOutputStream stringOffsets = new ByteArrayOutputStream();
+            DataOutputStream stringOffsetOut = new DataOutputStream(stringOffsets);
+            for (String string : stringIndexes.keySet()) {
+                stringOffsetOut.writeInt(stringData.size());
+                stringData.write(string.getBytes(StandardCharsets.UTF_8));
+            }
+            stringOffsetOut.writeInt(stringData.size());
+
+            long packagesOffset = HEADER_SIZE;
+            long entriesOffset = packagesOffset + packages.size();
+            long namesOffset = entriesOffset + entryTable.size();
+            long stringsOffset = namesOffset + names.size();
+            long stringDataOffset = stringsOffset + stringOffsets.size();
+            long wildcardsOffset = stringDataOffset + stringData.size();
+            if (wildcardsOffset + wildcards.size() * 4L > Integer.MAX_VALUE) {
+                throw new IOException("Store is too large for the binary format");
+            }
+
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(entryCount);
+            data.writeInt(packageCount);
+            data.writeInt(stringIndexes.size());
+            data.writeInt(wildcards.size());
+            for (long offset : new long[]{packagesOffset, entriesOffset, namesOffset, stringsOffset, stringDataOffset,
+                    wildcardsOffset}) {
+                data.writeInt((int) offset);
+            }
+            packages.writeTo(data);
+            entryTable.copyTo(data);
+            names.copyTo(data);
+            stringOffsets.writeTo(data);
+            stringData.writeTo(data);
+            for (int wildcard : wildcards) {
+                data.writeInt(wildcard);
+            }
+            data.flush();
+        }
+
+        /** delete the temporary files */
+        @Override
+        public void close() throws IOException {
+            try {
+                entryTable.delete();
+            } finally {
+                names.delete();
+            }
+        }
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length > 0xFFFF) {
+            throw new IOException("Name is too long for the binary format");
+        }
+    }
+}
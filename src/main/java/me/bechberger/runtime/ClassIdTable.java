@@ -0,0 +1,217 @@
+package me.bechberger.runtime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Table of the dense class ids that the {@code instrument} command assigns to every class of a JAR,
+ * stored as the resource {@link #RESOURCE} in the instrumented JAR
+ * <p>
+ * The instrumented static initializers only pass their id to {@link Store#markUsed(int)},
+ * the class names are resolved when the store is written.
+ * <p>
+ * The transitive interfaces of every class are computed when the table is written, interfaces that are not part
+ * of the JAR (like JDK interfaces) get ids after the classes of the JAR. So marking a class as used only needs
+ * the ids in the table and no reflection.
+ * <p>
+ * Format (UTF-8): the store path and the journal path (or empty lines), the number of ids and then a line per id
+ * with the class name followed by the ids of all its (transitive) interfaces, all separated by spaces
+ */
+public class ClassIdTable {
+
+    public static final String RESOURCE = "META-INF/dead-code/class-ids.txt";
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final String storePath;
+    private final String journalPath;
+    private int size;
+    /** null if only the header has been read */
+    private String[] classNames;
+    /** direct interfaces, only set while instrumenting */
+    private final String[][] interfaces;
+    /** ids of the transitive interfaces, null while instrumenting until {@link #computeInterfaceClosures} */
+    private int[][] interfaceClosures;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private ClassIdTable(String storePath, String journalPath, int size, String[] classNames, String[][] interfaces,
+                         int[][] interfaceClosures) {
+        this.storePath = storePath;
+        this.journalPath = journalPath;
+        this.size = size;
+        this.classNames = classNames;
+        this.interfaces = interfaces;
+        this.interfaceClosures = interfaceClosures;
+        if (classNames != null) {
+            for (int id = 0; id < size; id++) {
+                ids.putIfAbsent(classNames[id], id);
+            }
+        }
+    }
+
+    /**
+     * Create a table for instrumentation, the ids are assigned in the order of the passed class names
+     */
+    public ClassIdTable(String storePath, String journalPath, List<String> classNames) {
+        this(storePath, journalPath, classNames.size(), classNames.toArray(new String[0]),
+                new String[classNames.size()][], null);
+    }
+
+    /** empty table, used if the resource does not exist (e.g. for the agent) */
+    static ClassIdTable empty() {
+        return new ClassIdTable(null, null, 0, new String[0], null, new int[0][]);
+    }
+
+    /**
+     * Read the table from the resource, only reading the header if {@code full} is false
+     *
+     * @return empty table if the resource does not exist
+     */
+    static ClassIdTable load(ClassLoader loader, boolean full) {
+        try (InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(RESOURCE) :
+                loader.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                return empty();
+            }
+            return read(in, full);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static ClassIdTable read(InputStream in, boolean full) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String storePath = emptyToNull(reader.readLine());
+        String journalPath = emptyToNull(reader.readLine());
+        int size = Integer.parseInt(reader.readLine());
+        if (!full) {
+            return new ClassIdTable(storePath, journalPath, size, null, null, null);
+        }
+        String[] classNames = new String[size];
+        int[][] interfaceClosures = new int[size][];
+        for (int id = 0; id < size; id++) {
+            String[] parts = reader.readLine().split(" ");
+            classNames[id] = parts[0];
+            interfaceClosures[id] = parts.length == 1 ? NO_IDS : new int[parts.length - 1];
+            for (int i = 1; i < parts.length; i++) {
+                interfaceClosures[id][i - 1] = Integer.parseInt(parts[i]);
+            }
+        }
+        return new ClassIdTable(storePath, journalPath, size, classNames, null, interfaceClosures);
+    }
+
+    private static String emptyToNull(String str) {
+        return str.isEmpty() ? null : str;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** @return null if there is no store path */
+    public String getStorePath() {
+        return storePath;
+    }
+
+    /** @return null if the usage is not journaled */
+    public String getJournalPath() {
+        return journalPath;
+    }
+
+    public String getClassName(int id) {
+        return classNames[id];
+    }
+
+    /** @return -1 if the class has no id */
+    public int getId(String className) {
+        return ids.getOrDefault(className, -1);
+    }
+
+    /** ids of all (transitive) interfaces of the class */
+    public int[] getInterfaceClosure(int id) {
+        return interfaceClosures[id];
+    }
+
+    /** Set the direct interfaces of a class, might be called concurrently for different ids */
+    public void setInterfaces(int id, String[] interfaces) {
+        this.interfaces[id] = interfaces;
+    }
+
+    /**
+     * Compute the transitive interfaces of all classes, after the direct interfaces of the classes have been set
+     *
+     * @param interfaceResolver direct interfaces of classes whose interfaces have not been set
+     *                          (like JDK interfaces), empty if unknown
+     */
+    public void computeInterfaceClosures(Function<String, String[]> interfaceResolver) {
+        int classCount = size;
+        List<String> names = new ArrayList<>(Arrays.asList(classNames).subList(0, classCount));
+        List<String[]> directInterfaces = new ArrayList<>(Arrays.asList(interfaces).subList(0, classCount));
+        List<int[]> closures = new ArrayList<>();
+        for (int id = 0; id < classCount; id++) {
+            closure(id, names, directInterfaces, closures, interfaceResolver);
+        }
+        size = names.size();
+        classNames = names.toArray(new String[0]);
+        interfaceClosures = closures.toArray(new int[0][]);
+    }
+
+    /** closure of the id, assigns new ids to interfaces that are not yet in the table */
+    private int[] closure(int id, List<String> names, List<String[]> directInterfaces, List<int[]> closures,
+                          Function<String, String[]> interfaceResolver) {
+        while (closures.size() <= id) {
+            closures.add(null);
+        }
+        if (closures.get(id) != null) {
+            return closures.get(id);
+        }
+        // guards against cycles in broken class files
+        closures.set(id, NO_IDS);
+        String[] direct = directInterfaces.get(id);
+        if (direct == null) {
+            direct = interfaceResolver.apply(names.get(id));
+        }
+        Set<Integer> result = new LinkedHashSet<>();
+        for (String iface : direct) {
+            int ifaceId = ids.computeIfAbsent(iface, name -> {
+                names.add(name);
+                directInterfaces.add(null);
+                return names.size() - 1;
+            });
+            result.add(ifaceId);
+            for (int transitive : closure(ifaceId, names, directInterfaces, closures, interfaceResolver)) {
+                result.add(transitive);
+            }
+        }
+        int[] closure = result.stream().mapToInt(Integer::intValue).toArray();
+        closures.set(id, closure);
+        return closure;
+    }
+
+    /** requires the interface closures to be computed */
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(storePath == null ? "" : storePath).append('\n');
+        sb.append(journalPath == null ? "" : journalPath).append('\n');
+        sb.append(size).append('\n');
+        for (int id = 0; id < size; id++) {
+            sb.append(classNames[id]);
+            for (int iface : interfaceClosures[id]) {
+                sb.append(' ').append(iface);
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
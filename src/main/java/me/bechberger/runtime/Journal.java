@@ -0,0 +1,198 @@
+package me.bechberger.runtime;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Append-only log of the state transitions of the store, written to a memory-mapped file while the program runs,
+ * so that the collected data survives if the JVM is killed
+ * <p>
+ * Appending is lock-free: every record reserves its space with an atomic add and is written directly
+ * into the mapped file, a background thread forces the written pages to disk periodically.
+ * <p>
+ * Record format: state prefix ({@code l} or {@code u}), length of the class name (unsigned short, big endian),
+ * class name (UTF-8). The state is written last, zero bytes (e.g. at the end of a segment) are skipped.
+ */
+public class Journal implements AutoCloseable {
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4096;
+    private static final int HEADER_SIZE = 3;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final AtomicLong position = new AtomicLong();
+    private final AtomicReferenceArray<MappedByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    /** segments before this one are completely written and forced */
+    private int firstUnforcedSegment = 0;
+    private final Thread flusher;
+    private volatile boolean closed = false;
+    private volatile boolean overflowed = false;
+
+    /**
+     * @param flushIntervalMillis interval in which the written data is forced to disk, no background flushing if 0
+     */
+    public Journal(Path file, long flushIntervalMillis) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (flushIntervalMillis > 0) {
+            flusher = new Thread(() -> {
+                while (!closed) {
+                    try {
+                        Thread.sleep(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    flush();
+                }
+            }, "dead-code-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null) {
+            // racing threads map the same region, only one mapping is kept
+            segments.compareAndSet(index, null, channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) index * SEGMENT_SIZE, SEGMENT_SIZE));
+            segment = segments.get(index);
+        }
+        return segment;
+    }
+
+    /** append a state transition, lock-free */
+    public void append(Store.State state, String className) {
+        if (closed) {
+            return;
+        }
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_SIZE + name.length;
+        if (length > SEGMENT_SIZE || name.length > 0xFFFF) {
+            return;
+        }
+        while (true) {
+            long pos = position.getAndAdd(length);
+            int index = (int) (pos / SEGMENT_SIZE);
+            int offset = (int) (pos % SEGMENT_SIZE);
+            if (index >= MAX_SEGMENTS) {
+                if (!overflowed) {
+                    overflowed = true;
+                    System.err.println("Journal " + file + " is full, dropping further records");
+                }
+                return;
+            }
+            if (offset + length > SEGMENT_SIZE) {
+                // records do not cross segments, the reserved bytes stay zero
+                continue;
+            }
+            try {
+                MappedByteBuffer segment = segment(index);
+                segment.put(offset + 1, (byte) (name.length >> 8));
+                segment.put(offset + 2, (byte) name.length);
+                segment.put(offset + HEADER_SIZE, name);
+                // the state marks the record as complete, so it has to be written last
+                VarHandle.releaseFence();
+                segment.put(offset, (byte) state.prefix.charAt(0));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+    }
+
+    /** force all written data to disk */
+    public synchronized void flush() {
+        int lastSegment = (int) Math.min(position.get() / SEGMENT_SIZE, MAX_SEGMENTS - 1);
+        for (int i = firstUnforcedSegment; i <= lastSegment; i++) {
+            MappedByteBuffer segment = segments.get(i);
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        firstUnforcedSegment = lastSegment;
+    }
+
+    /**
+     * Flush the journal and stop appending
+     * <p>
+     * The file is not truncated, as concurrent appends might still write to the mapped segments.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Read all complete records of a journal, skipping padding and incomplete records
+     */
+    public static void read(Path file, BiConsumer<Store.State, String> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long start = 0; start < size; start += SEGMENT_SIZE) {
+                ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE,
+                        size - start));
+                readSegment(segment, consumer);
+            }
+        }
+    }
+
+    private static void readSegment(ByteBuffer segment, BiConsumer<Store.State, String> consumer) {
+        int limit = segment.limit();
+        int pos = 0;
+        while (pos + HEADER_SIZE <= limit) {
+            Store.State state = switch (segment.get(pos)) {
+                case 'l' -> Store.State.LOADED;
+                case 'u' -> Store.State.USED;
+                default -> null;
+            };
+            int length = ((segment.get(pos + 1) & 0xFF) << 8) | (segment.get(pos + 2) & 0xFF);
+            if (state == null || length == 0 || pos + HEADER_SIZE + length > limit ||
+                    !isComplete(segment, pos + HEADER_SIZE, length)) {
+                pos++;
+                continue;
+            }
+            byte[] name = new byte[length];
+            segment.get(pos + HEADER_SIZE, name);
+            consumer.accept(state, new String(name, StandardCharsets.UTF_8));
+            pos += HEADER_SIZE + length;
+        }
+    }
+
+    /** class names never contain zero bytes, so a name with zero bytes was not completely written */
+    private static boolean isComplete(ByteBuffer segment, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            if (segment.get(i) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
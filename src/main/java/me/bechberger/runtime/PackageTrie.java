@@ -0,0 +1,182 @@
+package me.bechberger.runtime;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trie of class name prefixes (like {@code com.foo.} for the wildcard {@code com.foo.*}) split into package segments,
+ * to find the longest matching prefix for a class name in O(name length), independent of the number of prefixes
+ * <p>
+ * Prefixes that do not end at a segment boundary (like {@code com.fo} for {@code com.fo*})
+ * are stored as fragments of the next segment. If the same prefix is added twice, the later value replaces
+ * the former one, like a later line for the same class in a store file.
+ * <p>
+ * The children of a node are kept in an open-addressing table keyed by the hash of their segment, so a lookup
+ * compares the segments in place and does not create a string per segment of the class name.
+ */
+public class PackageTrie<T> {
+
+    private record Fragment<T>(String fragment, int prefixLength, T value) {
+    }
+
+    private static class Node<T> {
+        final String segment;
+        final int hash;
+        /** value for the prefix ending with the "." after this node */
+        T value;
+        /** table of the children with linear probing, its length is a power of two, null if there are none */
+        Node<T>[] children;
+        int childCount;
+        List<Fragment<T>> fragments;
+
+        Node(String segment, int hash) {
+            this.segment = segment;
+            this.hash = hash;
+        }
+
+        /** child for the segment className[start, end) with the passed hash */
+        Node<T> child(String className, int start, int end, int hash) {
+            if (children == null) {
+                return null;
+            }
+            int mask = children.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Node<T> child = children[i];
+                if (child == null) {
+                    return null;
+                }
+                if (child.hash == hash && child.segment.length() == end - start &&
+                        className.startsWith(child.segment, start)) {
+                    return child;
+                }
+            }
+        }
+
+        Node<T> getOrAddChild(String segment) {
+            int hash = hash(segment, 0, segment.length());
+            Node<T> child = child(segment, 0, segment.length(), hash);
+            if (child != null) {
+                return child;
+            }
+            // keep the load factor at most 1/2, so probing always ends at an empty slot
+            if (children == null || (childCount + 1) * 2 > children.length) {
+                resize(children == null ? 4 : children.length * 2);
+            }
+            child = new Node<>(segment, hash);
+            insert(children, child);
+            childCount++;
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void resize(int length) {
+            Node<T>[] newChildren = (Node<T>[]) new Node<?>[length];
+            if (children != null) {
+                for (Node<T> child : children) {
+                    if (child != null) {
+                        insert(newChildren, child);
+                    }
+                }
+            }
+            children = newChildren;
+        }
+
+        private static <T> void insert(Node<T>[] table, Node<T> node) {
+            int mask = table.length - 1;
+            int i = node.hash & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+    }
+
+    /** hash of the segment className[start, end), spread like in {@link java.util.HashMap} */
+    private static int hash(String className, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + className.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private final Node<T> root = new Node<>("", 0);
+    /** values by prefix, in the order the prefixes were first added */
+    private final Map<String, T> values = new LinkedHashMap<>();
+
+    /**
+     * Add a prefix, e.g. "com.foo." or "com.fo" (the wildcard without the "*"), replacing the value of an
+     * already added equal prefix
+     *
+     * @return the replaced value, or null if the prefix is new
+     */
+    public T put(String prefix, T value) {
+        Node<T> node = root;
+        int pos = 0;
+        int dot;
+        while ((dot = prefix.indexOf('.', pos)) != -1) {
+            node = node.getOrAddChild(prefix.substring(pos, dot));
+            pos = dot + 1;
+        }
+        if (pos == prefix.length()) {
+            node.value = value;
+        } else {
+            if (node.fragments == null) {
+                node.fragments = new ArrayList<>();
+            }
+            String fragment = prefix.substring(pos);
+            node.fragments.removeIf(f -> f.fragment.equals(fragment));
+            node.fragments.add(new Fragment<>(fragment, prefix.length(), value));
+        }
+        return values.put(prefix, value);
+    }
+
+    /**
+     * @return value of the longest prefix of the class name, or null if there is none
+     */
+    public T findLongestMatch(String className) {
+        T best = null;
+        int bestLength = -1;
+        Node<T> node = root;
+        int pos = 0;
+        while (true) {
+            // node represents className[0, pos)
+            if (node.value != null) {
+                best = node.value;
+                bestLength = pos;
+            }
+            if (node.fragments != null) {
+                for (Fragment<T> fragment : node.fragments) {
+                    if (fragment.prefixLength > bestLength && className.startsWith(fragment.fragment, pos)) {
+                        best = fragment.value;
+                        bestLength = fragment.prefixLength;
+                    }
+                }
+            }
+            if (node.children == null) {
+                return best;
+            }
+            int dot = className.indexOf('.', pos);
+            if (dot == -1) {
+                return best;
+            }
+            node = node.child(className, pos, dot, hash(className, pos, dot));
+            if (node == null) {
+                return best;
+            }
+            pos = dot + 1;
+        }
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /** all values, in the order their prefixes were first added */
+    public Collection<T> values() {
+        return values.values();
+    }
+}
@@ -6,8 +6,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Consumer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class Store {
@@ -22,7 +27,12 @@ public class Store {
         }
 
         static State parse(String str) {
-            return Stream.of(State.values()).filter(e -> str.contains(e.prefix)).findFirst().orElse(NOT_LOADED);
+            for (State state : values()) {
+                if (str.contains(state.prefix)) {
+                    return state;
+                }
+            }
+            return NOT_LOADED;
         }
 
         boolean isLarger(State other) {
@@ -34,26 +44,34 @@ public class Store {
         }
     }
 
+    private static final String[] NO_INTERFACES = new String[0];
+
     /**
      * Entry in the store, contains the state of the class and some metadata
      * <p>
-     * Not thread-safe, but this is not a problem, as entries are only concurrently accessed
-     * when loaded or stored and this is sequential per single entry
+     * The state only ever increases (NOT_LOADED, LOADED, USED) and is updated via CAS, so every transition
+     * happens exactly once, even if the entry is updated concurrently (like by static initializers on
+     * multiple threads). The thread that makes a transition propagates it to the interfaces.
      */
     public static class Entry implements Comparable<Entry> {
+        private static final AtomicReferenceFieldUpdater<Entry, State> STATE =
+                AtomicReferenceFieldUpdater.newUpdater(Entry.class, State.class, "state");
+
         public final String className;
-        private State state;
+        private volatile State state;
         /**
          * from outside: should report usage
          */
-        private boolean report;
+        private final boolean report;
         /**
          * from outside: should remove class
          */
         public final boolean delete;
         public final String reportMessage;
 
-        private String[] interfaces = new String[0];
+        private volatile String[] interfaces = NO_INTERFACES;
+        /** larger for entries that are loaded later, to let later lines of a store file win (0 if not loaded) */
+        private int loadOrder = 0;
 
         public Entry(String className, State initialState, boolean report, boolean delete, String reportMessage) {
             this.className = className;
@@ -63,14 +81,36 @@ public class Store {
             this.reportMessage = reportMessage;
         }
 
-        public void setState(State state) {
-            this.state = state;
+        /**
+         * Increase the state to the passed one
+         *
+         * @return true if this call changed the state, false if the state was already at least as large
+         */
+        boolean advanceState(State target) {
+            while (true) {
+                State current = state;
+                if (current.isLargerOrEqual(target)) {
+                    return false;
+                }
+                if (STATE.compareAndSet(this, current, target)) {
+                    return true;
+                }
+            }
         }
 
         public State getState() {
             return state;
         }
 
+        /** copy with the current state */
+        Entry copy() {
+            return new Entry(className, state, report, delete, reportMessage);
+        }
+
+        public boolean isReport() {
+            return report;
+        }
+
         private String prefix() {
             return state.prefix + (report ? "r" : "") + (delete ? "d" : "");
         }
@@ -95,20 +135,84 @@ public class Store {
     }
 
     private final ConcurrentHashMap<String, Entry> classes = new ConcurrentHashMap<>();
-    private final List<Entry> multiClassEntries = new ArrayList<>();
+    /**
+     * Entries for multiple classes (like {@code com.foo.*}), the longest matching one applies to a class,
+     * so a more specific entry without flags excludes classes from a broader one. An entry for the class itself
+     * precedes all of them, and of two entries with the same prefix the later one applies.
+     */
+    private final PackageTrie<Entry> multiClassEntries = new PackageTrie<>();
+
+    /**
+     * Entries of a loaded binary store file, entries are copied to {@link #classes} when they are modified,
+     * might be null
+     */
+    private BinaryStore mapped = null;
+
+    /** number of chunks loaded from text store files, used to order the entries of the chunks */
+    private final AtomicInteger loadedChunks = new AtomicInteger();
 
     private OutputStream storeStream = null;
 
-    public Store() {
+    /** records all state transitions while the program runs, might be null */
+    private volatile Journal journal = null;
+
+    /** metrics of {@link #processClassUsage(String, Class)}, striped to be cheap under contention */
+    private final LongAdder processClassUsageCalls = new LongAdder();
+    private final LongAdder processClassUsageNanos = new LongAdder();
+
+    /** run on shutdown before the journal is closed and the store is written */
+    private final List<Runnable> shutdownTasks = new CopyOnWriteArrayList<>();
+
+    private boolean shutdownHookRegistered = false;
+
+    /**
+     * Register the hook that writes the store on shutdown, only once there is something to do on shutdown,
+     * so that stores that are only processed don't stay reachable
+     */
+    private synchronized void registerShutdownHook() {
+        if (shutdownHookRegistered) {
+            return;
+        }
+        shutdownHookRegistered = true;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            shutdownTasks.forEach(Runnable::run);
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
             if (storeStream != null) {
                 Store.getInstance().writeTo(storeStream);
             }
         }));
     }
 
+    /**
+     * Add a task that runs on shutdown, before the store is written (like recording the last state changes)
+     */
+    public void addShutdownTask(Runnable task) {
+        shutdownTasks.add(task);
+        registerShutdownHook();
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+        registerShutdownHook();
+    }
+
+    /**
+     * Apply the records of a journal, every class gets the largest state recorded for it
+     */
+    public Store loadJournal(Path file) throws IOException {
+        Journal.read(file, (state, className) -> get(className).advanceState(state));
+        return this;
+    }
+
     public void setStoreStream(OutputStream storeStream) {
         this.storeStream = storeStream;
+        registerShutdownHook();
     }
 
     public void setStorePathIfNotNull(String storePath) throws IOException {
@@ -122,28 +226,69 @@ public class Store {
     }
 
     /**
-     * Load entries of the store from a file
+     * Load entries of the store from a file, in the text or the binary format
      */
     public Store load(Path file, boolean mapToReport) throws IOException {
+        if (BinaryStore.isBinary(file)) {
+            return loadBinary(file, mapToReport);
+        }
+        TextStoreLoader loader = TextStoreLoader.open(file);
+        // the entries of a later chunk (or a later line in the same chunk) replace the previous ones
+        int firstLoadOrder = loadedChunks.getAndAdd(loader.getChunkCount()) + 1;
+        List<Entry> newMultiClassEntries = loader.parse(mapToReport, (chunk, entry) -> {
+            entry.loadOrder = firstLoadOrder + chunk;
+            classes.merge(entry.className, entry, (old, e) -> e.loadOrder >= old.loadOrder ? e : old);
+        });
+        for (Entry entry : newMultiClassEntries) {
+            multiClassEntries.put(entry.className.substring(0, entry.className.length() - 1), entry);
+        }
+        return this;
+    }
+
+    /**
+     * Open a binary store file without decoding its entries, if the store is still empty
+     * (otherwise the entries are added like in the text format)
+     */
+    private Store loadBinary(Path file, boolean mapToReport) throws IOException {
+        BinaryStore binaryStore = BinaryStore.open(file, mapToReport);
+        for (int index : binaryStore.getWildcardIndexes()) {
+            Entry entry = binaryStore.getEntry(index);
+            multiClassEntries.put(entry.className.substring(0, entry.className.length() - 1), entry);
+        }
+        if (mapped == null && classes.isEmpty()) {
+            mapped = binaryStore;
+            return this;
+        }
         Map<String, Entry> newClasses = new HashMap<>();
-        for (String line : Files.readAllLines(file)) {
-            Entry entry = Entry.parse(line);
-            if (entry.className.endsWith("*")) {
-                multiClassEntries.add(entry);
-            } else {
+        for (int index = 0; index < binaryStore.size(); index++) {
+            Entry entry = binaryStore.getEntry(index);
+            if (!entry.className.endsWith("*")) {
                 newClasses.put(entry.className, entry);
             }
-            if (mapToReport) {
-                entry.report = entry.state != State.USED;
-                entry.state = State.NOT_LOADED;
-            }
         }
         classes.putAll(newClasses);
         return this;
     }
 
+    /** all entries for single classes, decoding the entries of the mapped binary store that are not modified */
+    private Stream<Entry> entries() {
+        if (mapped == null) {
+            return classes.values().stream();
+        }
+        return Stream.concat(classes.values().stream(), IntStream.range(0, mapped.size())
+                .filter(i -> !classes.containsKey(mapped.getClassName(i)))
+                .mapToObj(mapped::getEntry).filter(e -> !e.className.endsWith("*")));
+    }
+
+    private Stream<Entry> allEntries() {
+        return Stream.concat(entries(), multiClassEntries.values().stream());
+    }
+
     public void writeTo(OutputStream stream) {
-        Stream.concat(classes.values().stream(), multiClassEntries.stream()).sorted().map(Entry::toString).forEach(s -> {
+        if (this == INSTANCE) {
+            processUsedClassIds();
+        }
+        allEntries().sorted().map(Entry::toString).forEach(s -> {
             try {
                 stream.write(s.getBytes());
                 stream.write('\n');
@@ -153,108 +298,324 @@ public class Store {
         });
     }
 
+    /**
+     * Write a copy of the entries, taken without blocking the threads that update the store
+     * <p>
+     * The state of every entry is read once before anything is written and states only increase,
+     * so the snapshot contains all state changes that happened before it was started (and maybe some
+     * that happened while the entries were copied). Sorting and writing only use the copy.
+     */
+    public void writeSnapshotTo(OutputStream stream) throws IOException {
+        Map<String, Entry> copies = new TreeMap<>();
+        BinaryStore mapped = this.mapped;
+        if (mapped != null) {
+            // the modified entries are added afterwards and replace these
+            for (int i = 0; i < mapped.size(); i++) {
+                Entry entry = mapped.getEntry(i);
+                if (!entry.className.endsWith("*")) {
+                    copies.put(entry.className, entry);
+                }
+            }
+        }
+        for (Entry entry : classes.values()) {
+            copies.put(entry.className, entry.copy());
+        }
+        for (Entry entry : multiClassEntries.values()) {
+            copies.put(entry.className, entry.copy());
+        }
+        for (Entry entry : copies.values()) {
+            stream.write(entry.toString().getBytes());
+            stream.write('\n');
+        }
+    }
+
+    /**
+     * Write the store in the binary format (see {@link BinaryStore})
+     */
+    public void writeBinaryTo(OutputStream stream) throws IOException {
+        if (this == INSTANCE) {
+            processUsedClassIds();
+        }
+        BinaryStore.write(allEntries().collect(Collectors.toList()), stream);
+    }
+
     private Entry newEntry(String className) {
-        return multiClassEntries.stream().filter(e -> className.startsWith(e.className.substring(0,
-                e.className.length() - 1))).findFirst().map(e -> new Entry(className, State.NOT_LOADED, e.report,
-                e.delete, e.reportMessage)).orElseGet(() -> new Entry(className, State.NOT_LOADED, false, false, ""));
+        if (mapped != null) {
+            int index = mapped.indexOf(className);
+            if (index != -1) {
+                return mapped.getEntry(index);
+            }
+        }
+        Entry e = multiClassEntries.findLongestMatch(className);
+        if (e == null) {
+            return new Entry(className, State.NOT_LOADED, false, false, "");
+        }
+        return new Entry(className, State.NOT_LOADED, e.report, e.delete, e.reportMessage);
+    }
+
+    /** entry of the class or of the matching multi class entry, null if there is none */
+    private Entry find(String className) {
+        Entry entry = classes.get(className);
+        if (entry == null && mapped != null) {
+            int index = mapped.indexOf(className);
+            if (index != -1) {
+                entry = mapped.getEntry(index);
+            }
+        }
+        return entry != null ? entry : multiClassEntries.findLongestMatch(className);
+    }
+
+    /** state of the entry for exactly this class, null if there is none */
+    private State findState(String className) {
+        Entry entry = classes.get(className);
+        if (entry != null) {
+            return entry.getState();
+        }
+        if (mapped != null) {
+            int index = mapped.indexOf(className);
+            if (index != -1) {
+                return mapped.getState(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Increase the state and record the transition in the journal
+     *
+     * @return true if the state changed
+     */
+    private boolean updateState(Entry entry, State state) {
+        if (!entry.advanceState(state)) {
+            return false;
+        }
+        Journal currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.append(state, entry.className);
+        }
+        return true;
     }
 
     private Entry get(String className) {
-        return classes.computeIfAbsent(className, k -> newEntry(className));
+        // computeIfAbsent might lock the bin even if the entry exists
+        Entry entry = classes.get(className);
+        return entry != null ? entry : classes.computeIfAbsent(className, k -> newEntry(className));
     }
 
     public void processClassLoad(String className, String[] interfaces) {
         Entry entry = get(className);
-        entry.setState(State.LOADED);
         entry.interfaces = interfaces;
-        setStateOfInterfaces(entry, State.LOADED, null);
+        if (updateState(entry, State.LOADED)) {
+            setInterfacesLoaded(entry);
+        }
     }
 
-    private void setStateOfInterfaces(Entry entry, State state, Consumer<Entry> interfaceEntryConsumer) {
+    private void setInterfacesLoaded(Entry entry) {
         for (String iface : entry.interfaces) {
             Entry ifaceEntry = get(iface);
-            if (ifaceEntry.getState().isLarger(state)) {
-                continue;
-            }
-            ifaceEntry.setState(state);
-            if (interfaceEntryConsumer != null) {
-                interfaceEntryConsumer.accept(entry);
+            if (updateState(ifaceEntry, State.LOADED)) {
+                setInterfacesLoaded(ifaceEntry);
             }
-            setStateOfInterfaces(ifaceEntry, state, interfaceEntryConsumer);
         }
     }
 
     public void processClassUsage(String className) {
         processClassUsage(className, null);
     }
+
     public void processClassUsage(String className, Class<?> klassOrNull) {
-        Entry classEntry = get(className);
+        long start = System.nanoTime();
+        try {
+            Entry entry = get(className);
+            if (!markUsed(entry)) {
+                // already used, the interfaces are handled by the thread that marked it
+                return;
+            }
+            if (klassOrNull == null) {
+                setInterfacesUsed(entry);
+            } else {
+                setInterfacesUsed(klassOrNull);
+            }
+        } finally {
+            processClassUsageCalls.increment();
+            processClassUsageNanos.add(System.nanoTime() - start);
+        }
+    }
 
-        Consumer<Entry> handler = (entry) -> {
-            entry.setState(State.USED);
+    /**
+     * Set the state to USED and report the usage if requested
+     *
+     * @return true if the entry was not used before
+     */
+    private boolean markUsed(Entry entry) {
+        if (!updateState(entry, State.USED)) {
+            return false;
+        }
+        if (entry.report) {
+            System.err.printf("Class %s used%s%n", entry.className, entry.reportMessage.isEmpty() ? "" :
+                    ": " + entry.reportMessage);
+        }
+        return true;
+    }
 
-            if (entry.report) {
-                System.err.printf("Class %s used%s%n", className, entry.reportMessage.isEmpty() ? "" :
-                        ": " + entry.reportMessage);
+    private void setInterfacesUsed(Entry entry) {
+        for (String iface : entry.interfaces) {
+            Entry ifaceEntry = get(iface);
+            if (markUsed(ifaceEntry)) {
+                setInterfacesUsed(ifaceEntry);
             }
-        };
-        handler.accept(classEntry);
-        if (klassOrNull == null) {
-            setStateOfInterfaces(classEntry, State.USED, handler);
-        } else {
-            setStateOfInterfaces(klassOrNull, State.USED, handler);
         }
     }
 
-    private void setStateOfInterfaces(Class<?> klass, State state, Consumer<Entry> handler) {
-
+    private void setInterfacesUsed(Class<?> klass) {
         for (Class<?> ifaceClass : klass.getInterfaces()) {
-            String iface = ifaceClass.getName();
-            Entry ifaceEntry = get(iface);
-            if (ifaceEntry.getState().isLarger(State.USED)) {
-                continue;
+            if (markUsed(get(ifaceClass.getName()))) {
+                setInterfacesUsed(ifaceClass);
             }
-            ifaceEntry.setState(State.USED);
-            handler.accept(ifaceEntry);
-            setStateOfInterfaces(ifaceClass, state, handler);
         }
     }
 
     public boolean shouldRemove(String className) {
-        return classes.containsKey(className) && classes.get(className).delete;
+        Entry entry = find(className);
+        return entry != null && entry.delete;
+    }
+
+    public long getProcessClassUsageCalls() {
+        return processClassUsageCalls.sum();
+    }
+
+    public long getProcessClassUsageNanos() {
+        return processClassUsageNanos.sum();
+    }
+
+    /** number of class entries (without the entries for multiple classes), takes linear time */
+    public long getClassCount() {
+        return entries().count();
     }
 
     public boolean isClassUsed(String className) {
-        return classes.containsKey(className) && classes.get(className).getState() == State.USED;
+        return findState(className) == State.USED;
     }
 
     public boolean isClassLoaded(String className) {
-        return classes.containsKey(className) && classes.get(className).getState().isLargerOrEqual(State.LOADED);
+        State state = findState(className);
+        return state != null && state.isLargerOrEqual(State.LOADED);
     }
 
     public boolean isClassMarkedForDeletion(String className) {
-        return classes.containsKey(className) && classes.get(className).delete;
+        Entry entry = find(className);
+        return entry != null && entry.delete;
     }
 
     public String getDeletionMessage(String className) {
-        return classes.containsKey(className) ? classes.get(className).reportMessage : "";
+        Entry entry = find(className);
+        return entry != null ? entry.reportMessage : "";
     }
 
     public Set<String> getUsedClasses() {
-        return classes.values().stream().filter(e -> e.getState() == State.USED).map(e -> e.className).collect(Collectors.toSet());
+        return getClasses(s -> s == State.USED);
     }
 
     public Set<String> getUnusedClasses() {
-        return classes.values().stream().filter(e -> e.getState() == State.LOADED).map(e -> e.className).collect(Collectors.toSet());
+        return getClasses(s -> s == State.LOADED);
     }
 
     public Set<String> getLoadedClasses() {
-        return classes.values().stream().filter(e -> e.getState().isLargerOrEqual(State.LOADED)).map(e -> e.className).collect(Collectors.toSet());
+        return getClasses(s -> s.isLargerOrEqual(State.LOADED));
+    }
+
+    /** names of the single class entries with matching states, without decoding other entries of the mapped store */
+    private Set<String> getClasses(Predicate<State> statePredicate) {
+        Set<String> result = classes.values().stream().filter(e -> statePredicate.test(e.getState()))
+                .map(e -> e.className).collect(Collectors.toSet());
+        if (mapped != null) {
+            for (int i = 0; i < mapped.size(); i++) {
+                if (statePredicate.test(mapped.getState(i))) {
+                    String className = mapped.getClassName(i);
+                    if (!className.endsWith("*") && !classes.containsKey(className)) {
+                        result.add(className);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Mark all classes as used that were passed to {@link #markUsed(int)}, resolving their names
+     * and transitive interfaces via the {@link ClassIdTable}
+     */
+    private void processUsedClassIds() {
+        if (CLASS_IDS.size() == 0) {
+            return;
+        }
+        ClassIdTable table = JOURNALED_CLASS_IDS != null ? JOURNALED_CLASS_IDS :
+                ClassIdTable.load(Store.class.getClassLoader(), true);
+        for (int id = 0; id < USED_CLASS_IDS.length; id++) {
+            if (USED_CLASS_IDS[id] != 0) {
+                processUsedClassId(id, table);
+            }
+        }
+    }
+
+    /** mark the class and all its interfaces as used, the table contains the transitive interfaces */
+    private void processUsedClassId(int id, ClassIdTable table) {
+        long start = System.nanoTime();
+        try {
+            if (!markUsed(get(table.getClassName(id)))) {
+                // already used, the interfaces are handled by the thread that marked it
+                return;
+            }
+            for (int iface : table.getInterfaceClosure(id)) {
+                markUsed(get(table.getClassName(iface)));
+            }
+        } finally {
+            processClassUsageCalls.increment();
+            processClassUsageNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /** header of the class id table, only present in instrumented JARs */
+    private static final ClassIdTable CLASS_IDS = ClassIdTable.load(Store.class.getClassLoader(), false);
+
+    /** used flags of the instrumented classes, indexed by their class id */
+    private static final byte[] USED_CLASS_IDS = new byte[CLASS_IDS.size()];
+
+    /**
+     * Called in the static initializer of the classes instrumented by the {@code instrument} command
+     */
+    public static void markUsed(int classId) {
+        if (JOURNALED_CLASS_IDS != null) {
+            // the journal has to contain the class name
+            if (USED_CLASS_IDS[classId] == 0) {
+                USED_CLASS_IDS[classId] = 1;
+                INSTANCE.processUsedClassId(classId, JOURNALED_CLASS_IDS);
+            }
+            return;
+        }
+        USED_CLASS_IDS[classId] = 1;
     }
 
     // creating the class is cheap, and we will need it for sure
     private static final Store INSTANCE = new Store();
 
+    /** full class id table if the usage of the instrumented classes is journaled, else null */
+    private static final ClassIdTable JOURNALED_CLASS_IDS = CLASS_IDS.getJournalPath() == null ? null :
+            ClassIdTable.load(Store.class.getClassLoader(), true);
+
+    static {
+        try {
+            if (CLASS_IDS.getStorePath() != null) {
+                INSTANCE.setStorePathIfNotNull(CLASS_IDS.getStorePath());
+            }
+            if (CLASS_IDS.getJournalPath() != null) {
+                INSTANCE.setJournal(new Journal(Path.of(CLASS_IDS.getJournalPath()), Journal.DEFAULT_FLUSH_INTERVAL));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static Store getInstance() {
         return INSTANCE;
     }
@@ -0,0 +1,153 @@
+package me.bechberger.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Parses a store file in the text format in parallel: the memory-mapped file is split into line-aligned chunks,
+ * which are parsed directly from the mapped bytes without creating strings for whole lines
+ * <p>
+ * Entries for single classes are passed to the consumer (concurrently, but sequentially per chunk),
+ * entries for multiple classes are collected in file order.
+ */
+class TextStoreLoader {
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(int chunk, Store.Entry entry);
+    }
+
+    private final Path file;
+    private final ByteBuffer buffer;
+    /** start of every chunk, with the file size as the last element */
+    private final int[] chunkStarts;
+
+    private TextStoreLoader(Path file, ByteBuffer buffer, int chunkSize) {
+        this.file = file;
+        this.buffer = buffer;
+        int size = buffer.limit();
+        List<Integer> starts = new ArrayList<>();
+        int start = 0;
+        while (start < size) {
+            starts.add(start);
+            int next = (int) Math.min(size, (long) start + chunkSize);
+            while (next < size && buffer.get(next - 1) != '\n') {
+                next++;
+            }
+            start = next;
+        }
+        starts.add(size);
+        chunkStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static TextStoreLoader open(Path file) throws IOException {
+        return open(file, CHUNK_SIZE);
+    }
+
+    /** @param chunkSize minimal size of a chunk, chunks end at the end of a line */
+    static TextStoreLoader open(Path file, int chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Store file " + file + " is too large");
+            }
+            return new TextStoreLoader(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    chunkSize);
+        }
+    }
+
+    int getChunkCount() {
+        return chunkStarts.length - 1;
+    }
+
+    /**
+     * Parse all chunks in parallel
+     *
+     * @param mapToReport map the state to the report flag and set the state to not loaded
+     * @return entries for multiple classes (class name ending with "*"), in the order of the file
+     */
+    List<Store.Entry> parse(boolean mapToReport, EntryConsumer consumer) {
+        List<List<Store.Entry>> multiClassEntries = IntStream.range(0, getChunkCount()).parallel()
+                .mapToObj(chunk -> parseChunk(chunk, mapToReport, consumer)).toList();
+        List<Store.Entry> result = new ArrayList<>();
+        for (List<Store.Entry> entries : multiClassEntries) {
+            result.addAll(entries);
+        }
+        return result;
+    }
+
+    private List<Store.Entry> parseChunk(int chunk, boolean mapToReport, EntryConsumer consumer) {
+        List<Store.Entry> multiClassEntries = new ArrayList<>(0);
+        byte[] scratch = new byte[256];
+        int end = chunkStarts[chunk + 1];
+        int lineStart = chunkStarts[chunk];
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > lineStart) {
+                Store.Entry entry = parseLine(lineStart, lineEnd, mapToReport, scratch);
+                if (entry.className.endsWith("*")) {
+                    multiClassEntries.add(entry);
+                } else {
+                    consumer.accept(chunk, entry);
+                }
+            }
+            lineStart = next;
+        }
+        return multiClassEntries;
+    }
+
+    /** parse a line like {@link Store.Entry#parse(String)} */
+    private Store.Entry parseLine(int start, int end, boolean mapToReport, byte[] scratch) {
+        boolean notLoaded = false, loaded = false, used = false, report = false, delete = false;
+        int pos = start;
+        for (; pos < end && buffer.get(pos) != ' '; pos++) {
+            switch (buffer.get(pos)) {
+                case 'n' -> notLoaded = true;
+                case 'l' -> loaded = true;
+                case 'u' -> used = true;
+                case 'r' -> report = true;
+                case 'd' -> delete = true;
+                default -> {
+                }
+            }
+        }
+        if (pos == end) {
+            throw new RuntimeException("Invalid line in store file " + file + ": " + string(start, end, scratch));
+        }
+        // the first matching state in the order of the enum, like State.parse
+        Store.State state = notLoaded ? Store.State.NOT_LOADED : loaded ? Store.State.LOADED :
+                used ? Store.State.USED : Store.State.NOT_LOADED;
+        int nameStart = pos + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < end && buffer.get(nameEnd) != ' ') {
+            nameEnd++;
+        }
+        String className = string(nameStart, nameEnd, scratch);
+        String message = nameEnd < end ? string(nameEnd + 1, end, scratch) : "";
+        if (mapToReport) {
+            return new Store.Entry(className, Store.State.NOT_LOADED, state != Store.State.USED, delete, message);
+        }
+        return new Store.Entry(className, state, report, delete, message);
+    }
+
+    private String string(int start, int end, byte[] scratch) {
+        byte[] bytes = end - start <= scratch.length ? scratch : new byte[end - start];
+        buffer.get(start, bytes, 0, end - start);
+        return new String(bytes, 0, end - start, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,126 @@
+package me.bechberger;
+
+import javassist.bytecode.ClassFile;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the {@link ClassFileScanner} with Javassist for the classes of the JDK and checks that malformed class
+ * files are rejected with an {@link IllegalArgumentException}
+ */
+class ClassFileScannerTest {
+
+    private static List<Path> jdkClasses() throws IOException {
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        try (Stream<Path> util = Files.walk(jrt.getPath("/modules/java.base/java/util"));
+             Stream<Path> lang = Files.list(jrt.getPath("/modules/java.base/java/lang"))) {
+            Path moduleInfo = jrt.getPath("/modules/java.base/module-info.class");
+            return Stream.concat(Stream.concat(util, lang), Stream.of(moduleInfo))
+                    .filter(p -> p.toString().endsWith(".class")).toList();
+        }
+    }
+
+    private static byte[] jdkClass(String name) throws IOException {
+        try (InputStream in = ClassLoader.getSystemResourceAsStream(name.replace('.', '/') + ".class")) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void sameAsJavassistForJdkClasses() throws IOException {
+        List<Path> classes = jdkClasses();
+        assertTrue(classes.size() > 1000);
+        for (Path path : classes) {
+            byte[] bytes = Files.readAllBytes(path);
+            ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes)));
+            ClassFileScanner scanner = new ClassFileScanner(bytes);
+            assertEquals(classFile.getName(), scanner.getClassName(), path.toString());
+            assertEquals(classFile.getSuperclass(), scanner.getSuperClassName(), path.toString());
+            assertArrayEquals(classFile.getInterfaces(), scanner.getInterfaces(), path.toString());
+            assertEquals(classFile.isInterface(), scanner.isInterface(), path.toString());
+            assertEquals((classFile.getAccessFlags() & ClassFileScanner.ACC_MODULE) != 0, scanner.isModule(),
+                    path.toString());
+            assertEquals(classFile.getMethod("<clinit>") != null, scanner.hasStaticInitializer(), path.toString());
+        }
+    }
+
+    @Test
+    void objectAndModuleHaveNoSuperClass() throws IOException {
+        assertNull(new ClassFileScanner(jdkClass("java.lang.Object")).getSuperClassName());
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        ClassFileScanner module = new ClassFileScanner(
+                Files.readAllBytes(jrt.getPath("/modules/java.base/module-info.class")));
+        assertTrue(module.isModule());
+        assertNull(module.getSuperClassName());
+    }
+
+    @Test
+    void truncatedClassFilesAreRejected() throws IOException {
+        for (String name : List.of("java.lang.Runnable", "java.util.AbstractList")) {
+            byte[] bytes = jdkClass(name);
+            for (int length = 0; length < bytes.length; length++) {
+                byte[] truncated = Arrays.copyOf(bytes, length);
+                assertThrows(IllegalArgumentException.class, () -> new ClassFileScanner(truncated),
+                        name + " truncated to " + length + " bytes");
+            }
+        }
+    }
+
+    @Test
+    void trailingBytesAreRejected() throws IOException {
+        byte[] bytes = jdkClass("java.lang.Runnable");
+        assertThrows(IllegalArgumentException.class, () -> new ClassFileScanner(Arrays.copyOf(bytes,
+                bytes.length + 1)));
+    }
+
+    @Test
+    void corruptedClassFilesAreRejectedOrParsed() throws IOException {
+        byte[] bytes = jdkClass("java.util.AbstractList");
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            byte[] corrupted = bytes.clone();
+            for (int j = random.nextInt(4); j >= 0; j--) {
+                corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt(256);
+            }
+            ClassFileScanner scanner;
+            try {
+                scanner = new ClassFileScanner(corrupted);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            // a class file that passed the scanner can be queried without exceptions
+            scanner.getClassName();
+            scanner.getSuperClassName();
+            scanner.getInterfaces();
+        }
+    }
+
+    @Test
+    void transformDoesNotThrowForTruncatedClassFiles() throws IOException {
+        ClassTransformer transformer = new ClassTransformer();
+        byte[] bytes = jdkClass("java.util.AbstractList");
+        for (int length : new int[]{0, 3, 10, 100, bytes.length / 2, bytes.length - 1}) {
+            assertNull(transformer.transform(null, ClassLoader.getSystemClassLoader(), "test/Truncated", null, null,
+                    Arrays.copyOf(bytes, length)));
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package me.bechberger.processor;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.LoaderClassPath;
+import javassist.bytecode.ClassFile;
+import me.bechberger.runtime.ClassIdTable;
+import me.bechberger.runtime.Store;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Instruments classes with the {@link ClinitTemplate}s, then loads and initializes them, so the JVM verifies them
+ * <p>
+ * The instrumented classes call a recording stub instead of the real {@link Store}, the stub is defined as
+ * {@code me.bechberger.runtime.Store} in the class loader of the instrumented classes.
+ */
+class ClinitTemplateTest {
+
+    /** copied and renamed to {@code me.bechberger.runtime.Store} */
+    public static class RecordingStore {
+        public static final List<String> CALLS = new ArrayList<>();
+        static final RecordingStore INSTANCE = new RecordingStore();
+
+        public static RecordingStore getInstance() {
+            return INSTANCE;
+        }
+
+        public void setStorePathIfNotNull(String storePath) {
+            CALLS.add("setStorePathIfNotNull " + storePath);
+        }
+
+        public void processClassUsage(String className) {
+            CALLS.add("processClassUsage " + className);
+        }
+
+        public void processClassUsage(String className, Class<?> klass) {
+            CALLS.add("processClassUsage " + className + " " + klass.getName());
+        }
+
+        public static void markUsed(int classId) {
+            CALLS.add("markUsed " + classId);
+        }
+    }
+
+    public static class WithoutInitializer {
+        public int value = 1;
+    }
+
+    /** static initializer with an exception handler and a deeper stack than the templates */
+    public static class WithInitializer {
+        public static int caught;
+        public static long value;
+        public static String message;
+
+        static {
+            try {
+                caught = Integer.parseInt("not a number");
+            } catch (NumberFormatException e) {
+                caught = -1;
+            }
+            long a = 1, b = 2, c = 3;
+            value = a + (b * (c + (a * (b + (c * (a + (b * (c + 4))))))));
+            message = "initialized";
+        }
+    }
+
+    /** defines the passed classes itself, before asking its parent */
+    private static class ChildFirstLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        ChildFirstLoader(Map<String, byte[]> classes) {
+            super(ClinitTemplateTest.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null && classes.containsKey(name)) {
+                byte[] bytes = classes.get(name);
+                loaded = defineClass(name, bytes, 0, bytes.length);
+            }
+            return loaded != null ? loaded : super.loadClass(name, resolve);
+        }
+    }
+
+    private final ClassPool pool = createPool();
+    private byte[] recordingStore;
+
+    private static ClassPool createPool() {
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new LoaderClassPath(ClinitTemplateTest.class.getClassLoader()));
+        return pool;
+    }
+
+    private byte[] recordingStore() throws Exception {
+        if (recordingStore == null) {
+            CtClass stub = pool.getAndRename(RecordingStore.class.getName(), "me.bechberger.runtime.Store");
+            // the copy is no longer a nested class
+            stub.getClassFile().removeAttribute("InnerClasses");
+            stub.getClassFile().removeAttribute("NestHost");
+            recordingStore = stub.toBytecode();
+        }
+        return recordingStore;
+    }
+
+    /** class file of the nested class, without the attributes that link it to this class */
+    private CtClass nested(Class<?> klass) throws Exception {
+        CtClass cc = pool.get(klass.getName());
+        cc.getClassFile().removeAttribute("InnerClasses");
+        cc.getClassFile().removeAttribute("NestHost");
+        return cc;
+    }
+
+    /** class file of Java 1.4 without a stack map, with a static initializer */
+    private CtClass java4Class() throws Exception {
+        CtClass cc = pool.makeClass("test.Java4");
+        cc.getClassFile().setMajorVersion(ClassFile.JAVA_4);
+        cc.addField(CtField.make("public static int value;", cc));
+        cc.makeClassInitializer().setBody("{ value = 42; }");
+        return cc;
+    }
+
+    /**
+     * Load and initialize the class with the stub store, adding the calls of the static initializer to the store
+     * to the passed list
+     */
+    @SuppressWarnings("unchecked")
+    private Class<?> initialize(CtClass cc, List<String> calls) throws Exception {
+        Map<String, byte[]> classes = new HashMap<>();
+        classes.put("me.bechberger.runtime.Store", recordingStore());
+        classes.put(cc.getName(), cc.toBytecode());
+        ChildFirstLoader loader = new ChildFirstLoader(classes);
+        Class<?> klass = Class.forName(cc.getName(), true, loader);
+        calls.addAll((List<String>) loader.loadClass("me.bechberger.runtime.Store").getField("CALLS").get(null));
+        return klass;
+    }
+
+    @Test
+    void storeHasTheMethodsOfTheTemplates() throws NoSuchMethodException {
+        assertNotNull(Store.class.getMethod("getInstance"));
+        assertNotNull(Store.class.getMethod("setStorePathIfNotNull", String.class));
+        assertNotNull(Store.class.getMethod("processClassUsage", String.class));
+        assertNotNull(Store.class.getMethod("processClassUsage", String.class, Class.class));
+        assertNotNull(Store.class.getMethod("markUsed", int.class));
+    }
+
+    @Test
+    void classWithoutInitializer() throws Exception {
+        CtClass cc = nested(WithoutInitializer.class);
+        assertNull(cc.getClassInitializer());
+        ClinitTemplate.PROCESS_CLASS_USAGE.insertInto(cc, cc.getName());
+        List<String> calls = new ArrayList<>();
+        Class<?> klass = initialize(cc, calls);
+        assertEquals(List.of("processClassUsage " + cc.getName()), calls);
+        assertEquals(1, klass.getField("value").getInt(klass.getConstructor().newInstance()));
+    }
+
+    @Test
+    void classWithInitializer() throws Exception {
+        CtClass cc = nested(WithInitializer.class);
+        int maxStack = cc.getClassInitializer().getMethodInfo().getCodeAttribute().getMaxStack();
+        assertTrue(cc.getClassInitializer().getMethodInfo().getCodeAttribute().getExceptionTable().size() > 0);
+        ClinitTemplate.PROCESS_CLASS_USAGE_WITH_STORE_PATH.insertInto(cc, "store.txt", cc.getName());
+        assertEquals(maxStack, cc.getClassInitializer().getMethodInfo().getCodeAttribute().getMaxStack());
+        List<String> calls = new ArrayList<>();
+        Class<?> klass = initialize(cc, calls);
+        assertEquals(List.of("setStorePathIfNotNull store.txt",
+                "processClassUsage " + cc.getName() + " " + cc.getName()), calls);
+        // the exception handler still covers the original instructions
+        assertEquals(-1, klass.getField("caught").getInt(null));
+        assertEquals(WithInitializer.value, klass.getField("value").getLong(null));
+        assertEquals("initialized", klass.getField("message").get(null));
+    }
+
+    @Test
+    void maxStackIsIncreased() throws Exception {
+        CtClass cc = java4Class();
+        assertEquals(1, cc.getClassInitializer().getMethodInfo().getCodeAttribute().getMaxStack());
+        ClinitTemplate.PROCESS_CLASS_USAGE_WITH_STORE_PATH.insertInto(cc, "store.txt", cc.getName());
+        assertEquals(3, cc.getClassInitializer().getMethodInfo().getCodeAttribute().getMaxStack());
+    }
+
+    @Test
+    void markUsed() throws Exception {
+        for (CtClass cc : List.of(nested(WithoutInitializer.class), nested(WithInitializer.class), java4Class())) {
+            ClinitTemplate.MARK_USED.insertInto(cc, 123456);
+            List<String> calls = new ArrayList<>();
+            initialize(cc, calls);
+            assertEquals(List.of("markUsed 123456"), calls, cc.getName());
+        }
+    }
+
+    @Test
+    void classFileOfJava4() throws Exception {
+        CtClass cc = java4Class();
+        ClinitTemplate.PROCESS_CLASS_USAGE.insertInto(cc, cc.getName());
+        List<String> calls = new ArrayList<>();
+        Class<?> klass = initialize(cc, calls);
+        assertEquals(List.of("processClassUsage test.Java4"), calls);
+        assertEquals(42, klass.getField("value").getInt(null));
+    }
+
+    /** the instrumenter falls back to Javassist for class files that cannot load class constants */
+    @Test
+    void classInstrumenter() throws Exception {
+        ClassIdTable classIds = new ClassIdTable(null, null, List.of(WithoutInitializer.class.getName()));
+        var instrumenter = ClassAndLibraryTransformer.createClassInstrumenter(Path.of("store.txt"), classIds);
+        CtClass withId = nested(WithoutInitializer.class);
+        CtClass withoutId = nested(WithInitializer.class);
+        CtClass java4 = java4Class();
+        List<String> calls = new ArrayList<>();
+        for (CtClass cc : List.of(withId, withoutId, java4)) {
+            instrumenter.accept(pool, cc);
+            calls.clear();
+            initialize(cc, calls);
+            if (cc == withId) {
+                assertEquals(List.of("markUsed 0"), calls);
+            } else {
+                assertEquals(List.of("setStorePathIfNotNull store.txt",
+                        "processClassUsage " + cc.getName() + " " + cc.getName()), calls, cc.getName());
+            }
+        }
+    }
+
+    @Test
+    void report() throws Exception {
+        CtClass cc = nested(WithInitializer.class);
+        ClinitTemplate.REPORT.insertInto(cc, "Class is used");
+        PrintStream err = System.err;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(out, true, StandardCharsets.UTF_8));
+        try {
+            initialize(cc, new ArrayList<>());
+        } finally {
+            System.setErr(err);
+        }
+        assertEquals("Class is used" + System.lineSeparator(), out.toString(StandardCharsets.UTF_8));
+    }
+}
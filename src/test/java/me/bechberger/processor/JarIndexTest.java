@@ -0,0 +1,200 @@
+package me.bechberger.processor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reading and writing {@link JarIndex} files and checking their records against the JARs
+ */
+class JarIndexTest {
+
+    private static final int DOS_TIME = ZipWriter.dosTime(1_700_000_000_000L);
+
+    @TempDir
+    Path directory;
+
+    /** JAR with the passed class entries, the class files only contain their names */
+    private static byte[] jar(List<String> classEntries, byte[] nestedJar) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out)) {
+            for (String entry : classEntries) {
+                writer.write(ZipWriter.prepare(entry, DOS_TIME, entry.getBytes(StandardCharsets.UTF_8)));
+            }
+            if (nestedJar != null) {
+                CRC32 crc = new CRC32();
+                crc.update(nestedJar);
+                writer.writeStored("BOOT-INF/lib/lib-1.0.jar", DOS_TIME, crc.getValue(), nestedJar.length,
+                        new ByteArrayInputStream(nestedJar));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private Path fatJar(String name, String... classEntries) throws IOException {
+        byte[] nested = jar(List.of("lib/A.class", "lib/B.class"), null);
+        return Files.write(directory.resolve(name), jar(List.of(classEntries), nested));
+    }
+
+    private static List<String> classes(Path jar, JarIndex index) throws IOException {
+        List<String> classes = new ArrayList<>();
+        new NestedJarProcessor(jar).withClassConsumer(classes::add).withIndex(index).process();
+        return classes;
+    }
+
+    private static String key(Path jar) throws IOException {
+        try (ZipView view = ZipView.open(jar)) {
+            return JarIndex.key(view);
+        }
+    }
+
+    @Test
+    void recordsHaveTheCrcsOfTheEntries() throws IOException {
+        Path jar = fatJar("app.jar", "BOOT-INF/classes/app/Main.class", "BOOT-INF/classes/app/Other.class");
+        Path indexDirectory = directory.resolve("index");
+        assertEquals(List.of("app.Main", "app.Other", "lib.A", "lib.B"), classes(jar, new JarIndex(indexDirectory)));
+        assertTrue(Files.readString(indexDirectory.resolve(key(jar) + ".idx")).startsWith("dead-code-index 3\n"));
+        // read from the files
+        JarIndex index = new JarIndex(indexDirectory);
+        try (ZipView view = ZipView.open(jar)) {
+            JarIndex.Record record = index.get(JarIndex.key(view));
+            assertNotNull(record);
+            assertEquals(List.of("app.Main", "app.Other"),
+                    record.classes().stream().map(JarIndex.IndexedClass::name).toList());
+            assertEquals(view.entries().get(0).crc(), record.classes().get(0).crc());
+            assertEquals(view.entries().get(2).crc(), record.nestedJars().get(0).crc());
+            assertTrue(record.matches(view));
+            assertNotNull(index.get(record.nestedJars().get(0).key(), view.nested(view.entries().get(2))));
+        }
+        assertEquals(List.of("app.Main", "app.Other", "lib.A", "lib.B"), classes(jar, index));
+    }
+
+    @Test
+    void recordMustMatchTheCentralDirectory() throws IOException {
+        Path jar = fatJar("app.jar", "app/Main.class", "app/Other.class");
+        try (ZipView view = ZipView.open(jar)) {
+            List<ZipView.Entry> entries = view.entries();
+            JarIndex.IndexedClass main = new JarIndex.IndexedClass("app.Main", entries.get(0).crc());
+            JarIndex.IndexedClass other = new JarIndex.IndexedClass("app.Other", entries.get(1).crc());
+            JarIndex.NestedJar lib = new JarIndex.NestedJar("key", entries.get(2).name(), entries.get(2).crc());
+            assertTrue(new JarIndex.Record(List.of(main, other), List.of(lib)).matches(view));
+            assertFalse(new JarIndex.Record(List.of(main), List.of(lib)).matches(view));
+            assertFalse(new JarIndex.Record(List.of(main, other, other), List.of(lib)).matches(view));
+            assertFalse(new JarIndex.Record(List.of(other, main), List.of(lib)).matches(view));
+            assertFalse(new JarIndex.Record(List.of(main, other), List.of()).matches(view));
+            assertFalse(new JarIndex.Record(List.of(main, new JarIndex.IndexedClass("app.Other", other.crc() ^ 1)),
+                    List.of(lib)).matches(view));
+            assertFalse(new JarIndex.Record(List.of(main, other),
+                    List.of(new JarIndex.NestedJar("key", lib.entryName(), lib.crc() ^ 1))).matches(view));
+        }
+    }
+
+    /** an index file that does not belong to its key is ignored and replaced */
+    @Test
+    void mismatchingIndexFileIsIgnored() throws IOException {
+        Path indexDirectory = directory.resolve("index");
+        Path first = fatJar("first.jar", "app/Main.class");
+        Path second = fatJar("second.jar", "app/Other.class");
+        classes(first, new JarIndex(indexDirectory));
+        Files.copy(indexDirectory.resolve(key(first) + ".idx"), indexDirectory.resolve(key(second) + ".idx"),
+                StandardCopyOption.REPLACE_EXISTING);
+        assertEquals(List.of("app.Other", "lib.A", "lib.B"), classes(second, new JarIndex(indexDirectory)));
+        assertEquals(List.of("app.Other", "lib.A", "lib.B"), classes(second, new JarIndex(indexDirectory)));
+        try (ZipView view = ZipView.open(second)) {
+            assertTrue(new JarIndex(indexDirectory).get(key(second)).matches(view));
+        }
+    }
+
+    private static String key(JarIndex index, Path jar) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+        try (ZipView view = ZipView.open(jar)) {
+            return index.key(jar, attributes, view);
+        }
+    }
+
+    /** replace the content in place, keeping the size, the modification time and the file key */
+    private static void overwrite(Path jar, byte[] content) throws IOException {
+        FileTime lastModified = Files.getLastModifiedTime(jar);
+        Object fileKey = Files.readAttributes(jar, BasicFileAttributes.class).fileKey();
+        try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(content));
+        }
+        Files.setLastModifiedTime(jar, lastModified);
+        assertEquals(fileKey, Files.readAttributes(jar, BasicFileAttributes.class).fileKey());
+    }
+
+    @Test
+    void keyIsCachedByPath() throws IOException {
+        Path indexDirectory = directory.resolve("index");
+        Path jar = fatJar("app.jar", "app/Main.class");
+        Path other = fatJar("other.jar", "app/Mine.class");
+        assertEquals(Files.size(jar), Files.size(other));
+        Files.setLastModifiedTime(jar, FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS)));
+        String original = key(jar);
+        assertEquals(original, key(new JarIndex(indexDirectory), jar));
+        // a change that keeps the attributes is not noticed, neither in memory nor via the index directory
+        JarIndex index = new JarIndex(indexDirectory);
+        assertEquals(original, key(index, jar));
+        overwrite(jar, Files.readAllBytes(other));
+        assertEquals(original, key(index, jar));
+        assertEquals(original, key(new JarIndex(indexDirectory), jar));
+        // a new modification time is
+        Files.setLastModifiedTime(jar, FileTime.from(Instant.now().minus(30, ChronoUnit.MINUTES)));
+        assertEquals(key(other), key(index, jar));
+        assertEquals(key(other), key(new JarIndex(indexDirectory), jar));
+        assertEquals(key(other), key(new JarIndex(), jar));
+    }
+
+    /** files modified within the resolution of the modification time are digested every time */
+    @Test
+    void recentlyModifiedFilesAreNotCached() throws IOException {
+        Path jar = fatJar("app.jar", "app/Main.class");
+        Path other = fatJar("other.jar", "app/Mine.class");
+        JarIndex index = new JarIndex(directory.resolve("index"));
+        String original = key(index, jar);
+        overwrite(jar, Files.readAllBytes(other));
+        assertEquals(key(other), key(index, jar));
+        assertEquals(key(other), key(new JarIndex(directory.resolve("index")), jar));
+        assertTrue(original.length() == 64 && !original.equals(key(other)));
+    }
+
+    @Test
+    void olderAndMalformedFilesAreIgnored() throws IOException {
+        Files.createDirectories(directory);
+        for (String content : List.of("dead-code-index 2\nc app.Main\n", "dead-code-index 3\nc 0000000 app.Main\n",
+                "dead-code-index 3\nc 0000000g app.Main\n", "dead-code-index 3\nc 00000000\n",
+                "dead-code-index 3\nj 00000000 key\n", "dead-code-index 3\nx 00000000 app.Main\n")) {
+            Files.writeString(directory.resolve("key.idx"), content);
+            assertNull(new JarIndex(directory).get("key"), content);
+        }
+        Files.writeString(directory.resolve("key.idx"), "dead-code-index 3\nc 0123abcd app.Main\n" +
+                "j ffffffff nested lib/with space.jar\n");
+        JarIndex.Record record = new JarIndex(directory).get("key");
+        assertEquals(List.of(new JarIndex.IndexedClass("app.Main", 0x0123abcdL)), record.classes());
+        assertEquals(List.of(new JarIndex.NestedJar("nested", "lib/with space.jar", 0xffffffffL)),
+                record.nestedJars());
+    }
+}
@@ -0,0 +1,93 @@
+package me.bechberger.processor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Commands sent to the daemon with {@link ProcessorServer#query}, their whole output has to reach the client
+ */
+class ProcessorServerTest {
+
+    private static final int DOS_TIME = ZipWriter.dosTime(1_700_000_000_000L);
+
+    @TempDir
+    Path directory;
+
+    /** JAR with the passed entries, the class files only contain their names */
+    private static byte[] jar(List<String> classEntries, byte[] nestedJar) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out)) {
+            for (String entry : classEntries) {
+                writer.write(ZipWriter.prepare(entry, DOS_TIME, entry.getBytes(StandardCharsets.UTF_8)));
+            }
+            if (nestedJar != null) {
+                CRC32 crc = new CRC32();
+                crc.update(nestedJar);
+                writer.writeStored("BOOT-INF/lib/unused-1.0.jar", DOS_TIME, crc.getValue(), nestedJar.length,
+                        new ByteArrayInputStream(nestedJar));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private Path startServer() throws Exception {
+        Path socket = directory.resolve("dead-code.sock");
+        Thread thread = new Thread(() -> {
+            try {
+                new ProcessorServer(socket, new ProcessorCache()).serve(new PrintWriter(new StringWriter()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        for (int i = 0; i < 1000 && !Files.exists(socket); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.exists(socket));
+        return socket;
+    }
+
+    @Test
+    void reduceJARPrintsToTheClient() throws Exception {
+        Path store = Files.writeString(directory.resolve("store.txt"), "u app.Main\nn app.Unused\nn other.X\n");
+        Path jar = Files.write(directory.resolve("app.jar"),
+                jar(List.of("app/Main.class", "app/Unused.class"), jar(List.of("other/X.class"), null)));
+        Path socket = startServer();
+        StringWriter stdout = new StringWriter();
+        StringWriter stderr = new StringWriter();
+        PrintStream systemOut = System.out;
+        ByteArrayOutputStream daemonOut = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(daemonOut, true, StandardCharsets.UTF_8));
+        int exitCode;
+        try {
+            exitCode = ProcessorServer.query(socket, new String[]{"--no-index", store.toString(), "reduceJAR",
+                    jar.toString(), directory.resolve("reduced.jar").toString()}, new PrintWriter(stdout),
+                    new PrintWriter(stderr));
+        } finally {
+            System.setOut(systemOut);
+        }
+        assertEquals(0, exitCode, stderr.toString());
+        assertEquals(List.of("Skipping class app.Unused", "Skipping library unused"),
+                stdout.toString().lines().toList());
+        assertEquals("", daemonOut.toString(StandardCharsets.UTF_8));
+        try (ZipView view = ZipView.open(directory.resolve("reduced.jar"))) {
+            assertEquals(List.of("app/Main.class"), view.entries().stream().map(ZipView.Entry::name).toList());
+        }
+    }
+}
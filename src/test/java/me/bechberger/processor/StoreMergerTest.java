@@ -0,0 +1,154 @@
+package me.bechberger.processor;
+
+import me.bechberger.runtime.BinaryStore;
+import me.bechberger.runtime.Store;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Merging sorted and unsorted text store files and binary store files with {@link StoreMerger}
+ */
+class StoreMergerTest {
+
+    @TempDir
+    Path directory;
+
+    private Path text(String name, String... lines) throws IOException {
+        return Files.writeString(directory.resolve(name), String.join("\n", lines) + "\n");
+    }
+
+    private Path binary(String name, String... lines) throws IOException {
+        Path file = directory.resolve(name);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            BinaryStore.write(List.of(lines).stream().map(Store.Entry::parse).toList(), out);
+        }
+        return file;
+    }
+
+    private static List<String> merge(int parallelism, Path... inputs) throws IOException {
+        return merge(new StoreMerger(List.of(inputs), parallelism, StoreMerger.CLASS_NAME_ORDER));
+    }
+
+    private static List<String> merge(StoreMerger merger) throws IOException {
+        List<String> merged = new ArrayList<>();
+        merger.merge(entry -> merged.add(entry.toString()));
+        return merged;
+    }
+
+    private List<Path> runFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(file -> file.getFileName().toString().startsWith("store-run")).toList();
+        }
+    }
+
+    @Test
+    void largestStateAndFlags() throws IOException {
+        Path a = text("a.txt", "l a.Both", "n a.OnlyA", "nr a.Report first message");
+        Path b = text("b.txt", "u a.Both", "nd a.Report second message", "l b.OnlyB");
+        assertEquals(List.of("u a.Both", "n a.OnlyA", "nrd a.Report first message", "l b.OnlyB"),
+                merge(1, a, b));
+    }
+
+    @Test
+    void firstNonEmptyReportMessage() throws IOException {
+        Path a = text("a.txt", "nr a.Class");
+        Path b = text("b.txt", "nr a.Class from b");
+        Path c = text("c.txt", "nr a.Class from c");
+        assertEquals(List.of("nr a.Class from b"), merge(1, a, b, c));
+    }
+
+    @Test
+    void unsortedAndBinaryInputs() throws IOException {
+        Path sorted = text("sorted.txt", "l a.A", "l a.C", "u b.B");
+        Path unsorted = text("unsorted.txt", "u z.Z", "u a.C", "", "l a.B\r");
+        Path bin = binary("store.bin", "u a.A", "n y.Y", "l a.*");
+        assertEquals(List.of("l a.*", "u a.A", "l a.B", "u a.C", "u b.B", "n y.Y", "u z.Z"),
+                merge(2, sorted, unsorted, bin));
+    }
+
+    @Test
+    void duplicatesInOneInput() throws IOException {
+        Path a = text("a.txt", "l a.Class", "u a.Class", "n b.Class");
+        assertEquals(List.of("u a.Class", "n b.Class"), merge(1, a));
+    }
+
+    @Test
+    void emptyInputs() throws IOException {
+        Path empty = Files.writeString(directory.resolve("empty.txt"), "");
+        Path a = text("a.txt", "u a.Class");
+        assertEquals(List.of("u a.Class"), merge(4, empty, a));
+        assertEquals(List.of(), merge(1, empty));
+    }
+
+    @Test
+    void manyInputs() throws IOException {
+        // reference: the largest state per class
+        TreeMap<String, Store.State> expected = new TreeMap<>();
+        List<Path> inputs = new ArrayList<>();
+        for (int input = 0; input < 20; input++) {
+            List<String> lines = new ArrayList<>();
+            for (int i = input; i < 1000; i += input + 1) {
+                Store.State state = Store.State.values()[(i + input) % 3];
+                String className = "pkg" + (i % 7) + ".Class" + i;
+                lines.add(state.prefix + " " + className);
+                expected.merge(className, state, (x, y) -> x.compareTo(y) >= 0 ? x : y);
+            }
+            // sorted by class name, like the files written by the agent
+            lines.sort(Comparator.comparing(line -> line.substring(2)));
+            inputs.add(input % 2 == 0 ? text(input + ".txt", lines.toArray(String[]::new)) :
+                    binary(input + ".bin", lines.toArray(String[]::new)));
+        }
+        List<String> merged = merge(4, inputs.toArray(Path[]::new));
+        assertEquals(expected.entrySet().stream().map(e -> e.getValue().prefix + " " + e.getKey()).toList(), merged);
+    }
+
+    /** unsorted inputs are sorted in runs, entries for the same class keep the order of the file */
+    @Test
+    void unsortedInputInRuns() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lines.add("n c.Class" + (99 - i));
+            lines.add((i % 2 == 0 ? "nr" : "n") + " c.Class" + (i * 37 % 100) + " message " + i);
+        }
+        lines.add("nr c.Class3 last");
+        Path unsorted = text("unsorted.txt", lines.toArray(String[]::new));
+        Path sorted = text("sorted.txt", "u c.Class0", "u c.Class5");
+        List<Path> before = runFiles();
+        List<String> merged = merge(new StoreMerger(List.of(unsorted, sorted), 2, StoreMerger.CLASS_NAME_ORDER, 7));
+        assertEquals(merge(new StoreMerger(List.of(unsorted, sorted), 2, StoreMerger.CLASS_NAME_ORDER, 1000)),
+                merged);
+        assertEquals(before, runFiles());
+        assertEquals(100, merged.size());
+        assertEquals("ur c.Class0 message 0", merged.get(0));
+        assertEquals("n c.Class1 message 73", merged.get(1));
+        assertEquals("nr c.Class10 message 30", merged.get(2));
+        // the message in line 40 comes before the one in the last line, which is in a later run
+        assertEquals("nr c.Class3 message 19", merged.get(23));
+        assertEquals("u c.Class5 message 65", merged.get(45));
+    }
+
+    /** binary stores are streamed in the order of their entries, text stores are sorted in runs */
+    @Test
+    void binaryOrder() throws IOException {
+        Path bin = binary("store.bin", "u a.b.C", "n a.B", "l a.*", "n a.\u00e9", "l a.Z");
+        Path text = text("store.txt", "u a.B", "n a.b.A", "n b.A", "l a.\ud83d\ude00");
+        List<String> merged = merge(new StoreMerger(List.of(bin, text), 1, StoreMerger.BINARY_ORDER, 2));
+        assertEquals(List.of("l a.*", "u a.B", "l a.Z", "n a.\u00e9", "l a.\ud83d\ude00", "n a.b.A", "u a.b.C",
+                "n b.A"), merged);
+        List<String> sorted = new ArrayList<>(merged.stream().map(line -> line.substring(2)).toList());
+        sorted.sort(BinaryStore::compare);
+        assertEquals(sorted, merged.stream().map(line -> line.substring(2)).toList());
+    }
+}
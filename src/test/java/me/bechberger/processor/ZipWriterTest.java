@@ -0,0 +1,257 @@
+package me.bechberger.processor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of {@link ZipWriter} and {@link ZipView}, checked against {@link ZipFile} too
+ */
+class ZipWriterTest {
+
+    private static final int DOS_TIME = ZipWriter.dosTime(1_700_000_000_000L);
+
+    @TempDir
+    Path directory;
+
+    private static byte[] content(int i) {
+        return ("content of entry " + i + " ".repeat(Math.abs(i) % 50)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** ZIP with DEFLATED entries and a STORED entry */
+    private static byte[] writeZip(int entryCount) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out)) {
+            for (int i = 0; i < entryCount; i++) {
+                writer.write(ZipWriter.prepare("dir/entry" + i + ".txt", DOS_TIME, content(i)));
+            }
+            byte[] stored = content(-1);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            writer.writeStored("stored.bin", DOS_TIME, crc.getValue(), stored.length,
+                    new ByteArrayInputStream(stored));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] read(ZipView view, ZipView.Entry entry) throws IOException {
+        try (InputStream in = view.inputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void assertContent(ZipView view, int entryCount) throws IOException {
+        List<ZipView.Entry> entries = view.entries();
+        assertEquals(entryCount + 1, entries.size());
+        for (int i = 0; i < entryCount; i++) {
+            ZipView.Entry entry = entries.get(i);
+            assertEquals("dir/entry" + i + ".txt", entry.name());
+            assertEquals(ZipView.DEFLATED, entry.method());
+            assertEquals(DOS_TIME, entry.dosTime());
+            assertArrayEquals(content(i), read(view, entry));
+        }
+        ZipView.Entry stored = entries.get(entryCount);
+        assertEquals(ZipView.STORED, stored.method());
+        assertArrayEquals(content(-1), read(view, stored));
+    }
+
+    private static void assertContent(Path file, int entryCount) throws IOException {
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            assertEquals(entryCount + 1, zip.size());
+            for (int i = 0; i < entryCount; i += Math.max(1, entryCount / 100)) {
+                ZipEntry entry = zip.getEntry("dir/entry" + i + ".txt");
+                try (InputStream in = zip.getInputStream(entry)) {
+                    assertArrayEquals(content(i), in.readAllBytes());
+                }
+            }
+            try (InputStream in = zip.getInputStream(zip.getEntry("stored.bin"))) {
+                assertArrayEquals(content(-1), in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        Path file = Files.write(directory.resolve("test.zip"), writeZip(10));
+        try (ZipView view = ZipView.open(file)) {
+            assertContent(view, 10);
+        }
+        assertContent(file, 10);
+    }
+
+    @Test
+    void zip64ForManyEntries() throws IOException {
+        // more entries than fit into the end of central directory record
+        int entryCount = 0x10000 + 10;
+        Path file = Files.write(directory.resolve("test.zip"), writeZip(entryCount));
+        try (ZipView view = ZipView.open(file)) {
+            assertContent(view, entryCount);
+        }
+        assertContent(file, entryCount);
+    }
+
+    @Test
+    void prependedData() throws IOException {
+        byte[] script = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(StandardCharsets.UTF_8);
+        byte[] zip = writeZip(10);
+        ByteBuffer withScript = ByteBuffer.allocate(script.length + zip.length).put(script).put(zip).flip();
+        Path file = Files.write(directory.resolve("test.jar"), withScript.array());
+        try (ZipView view = ZipView.open(file)) {
+            assertContent(view, 10);
+        }
+        try (ZipView view = ZipView.of(withScript)) {
+            assertContent(view, 10);
+        }
+    }
+
+    @Test
+    void zip64WithPrependedData() throws IOException {
+        int entryCount = 0x10000 + 10;
+        byte[] script = "#!/bin/sh\n".getBytes(StandardCharsets.UTF_8);
+        byte[] zip = writeZip(entryCount);
+        ByteBuffer withScript = ByteBuffer.allocate(script.length + zip.length).put(script).put(zip).flip();
+        try (ZipView view = ZipView.of(withScript)) {
+            assertContent(view, entryCount);
+        }
+    }
+
+    @Test
+    void copyIsVerbatim() throws IOException {
+        byte[] zip = writeZip(20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipView view = ZipView.of(ByteBuffer.wrap(zip)); ZipWriter writer = new ZipWriter(out)) {
+            for (ZipView.Entry entry : view.entries()) {
+                writer.copy(view, entry);
+            }
+        }
+        assertArrayEquals(zip, out.toByteArray());
+    }
+
+    private static byte[] copy(Path file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipView view = ZipView.open(file); ZipWriter writer = new ZipWriter(out)) {
+            for (ZipView.Entry entry : view.entries()) {
+                writer.copy(view, entry);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** extra field with an unknown id, which has to be kept as is */
+    private static byte[] extraField(int id, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + bytes.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) id).putShort((short) bytes.length).put(bytes).array();
+    }
+
+    @Test
+    void copyKeepsExtraFieldsAndComments() throws IOException {
+        byte[] extra = extraField(0xCAFE, "extra data");
+        Path file = directory.resolve("original.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file))) {
+            // DEFLATED entries are written with a data descriptor
+            ZipEntry entry = new ZipEntry("with-extra.txt");
+            entry.setExtra(extra);
+            entry.setComment("a comment");
+            out.putNextEntry(entry);
+            out.write(content(1));
+            out.putNextEntry(new ZipEntry("plain.txt"));
+            out.write(content(2));
+        }
+        Path copy = Files.write(directory.resolve("copy.zip"), copy(file));
+        try (ZipView view = ZipView.open(copy)) {
+            ZipView.Entry entry = view.entries().get(0);
+            assertArrayEquals(extra, view.localExtra(entry));
+            assertArrayEquals(extra, entry.extra());
+            assertArrayEquals("a comment".getBytes(StandardCharsets.UTF_8), entry.comment());
+            assertEquals(0, entry.flags() & 0x0008);
+            assertArrayEquals(content(1), read(view, entry));
+            assertEquals(0, view.localExtra(view.entries().get(1)).length);
+        }
+        try (ZipFile zip = new ZipFile(copy.toFile())) {
+            ZipEntry entry = zip.getEntry("with-extra.txt");
+            assertArrayEquals(extra, entry.getExtra());
+            assertEquals("a comment", entry.getComment());
+            try (InputStream in = zip.getInputStream(entry)) {
+                assertArrayEquals(content(1), in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void copyKeepsUnixFileModes() throws IOException {
+        Path file = directory.resolve("original.zip");
+        Set<PosixFilePermission> executable = PosixFilePermissions.fromString("rwxr-x---");
+        Set<PosixFilePermission> readOnly = PosixFilePermissions.fromString("r--r--r--");
+        try (FileSystem zip = FileSystems.newFileSystem(file,
+                Map.of("create", "true", "enablePosixFileAttributes", "true"))) {
+            Files.createDirectory(zip.getPath("bin"));
+            Files.setPosixFilePermissions(zip.getPath("bin"), PosixFilePermissions.fromString("rwxr-xr-x"));
+            Files.write(zip.getPath("bin/run.sh"), content(1));
+            Files.setPosixFilePermissions(zip.getPath("bin/run.sh"), executable);
+            Files.write(zip.getPath("read-only.txt"), content(2));
+            Files.setPosixFilePermissions(zip.getPath("read-only.txt"), readOnly);
+        }
+        Path copy = Files.write(directory.resolve("copy.zip"), copy(file));
+        try (ZipView original = ZipView.open(file); ZipView copied = ZipView.open(copy)) {
+            assertEquals(original.entries().size(), copied.entries().size());
+            for (int i = 0; i < original.entries().size(); i++) {
+                ZipView.Entry expected = original.entries().get(i);
+                ZipView.Entry actual = copied.entries().get(i);
+                assertEquals(expected.name(), actual.name());
+                // unix host and file mode
+                assertEquals(3, expected.versionMadeBy() >> 8, expected.name());
+                assertTrue(expected.externalAttributes() >>> 16 != 0, expected.name());
+                assertEquals(expected.versionMadeBy(), actual.versionMadeBy());
+                assertEquals(expected.externalAttributes(), actual.externalAttributes());
+                assertArrayEquals(expected.extra(), actual.extra());
+                assertArrayEquals(original.localExtra(expected), copied.localExtra(actual));
+            }
+        }
+        try (FileSystem zip = FileSystems.newFileSystem(copy, Map.of("enablePosixFileAttributes", "true"))) {
+            assertEquals(executable, Files.getPosixFilePermissions(zip.getPath("bin/run.sh")));
+            assertEquals(readOnly, Files.getPosixFilePermissions(zip.getPath("read-only.txt")));
+            assertArrayEquals(content(1), Files.readAllBytes(zip.getPath("bin/run.sh")));
+        }
+    }
+
+    @Test
+    void nestedStoredZip() throws IOException {
+        byte[] nested = writeZip(5);
+        CRC32 crc = new CRC32();
+        crc.update(nested);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out)) {
+            writer.writeStored("lib/nested.jar", DOS_TIME, crc.getValue(), nested.length,
+                    new ByteArrayInputStream(nested));
+        }
+        try (ZipView view = ZipView.of(ByteBuffer.wrap(out.toByteArray()));
+             ZipView nestedView = view.nested(view.entries().get(0))) {
+            assertContent(nestedView, 5);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package me.bechberger.runtime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of {@link BinaryStore#write(java.util.Collection, OutputStream)} and {@link BinaryStore#open(Path,
+ * boolean)}, entries are compared in their text format
+ */
+class BinaryStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private static final List<String> LINES = List.of(
+            "u Default",
+            "l com.foo.Bar",
+            "ur com.foo.Bar$Inner used inner class",
+            "nd com.foo.Zzz",
+            "nr com.foo.* report everything in foo",
+            "u com.foo.bar.Baz",
+            "n com.foo.bar.*",
+            "lrd com.föö.Ünïcode ünïcode message",
+            "u org.example.Main");
+
+    private Path write(List<String> lines) throws IOException {
+        Path file = directory.resolve("store.bin");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            BinaryStore.write(lines.stream().map(Store.Entry::parse).toList(), out);
+        }
+        return file;
+    }
+
+    private static List<String> read(BinaryStore store) {
+        return IntStream.range(0, store.size()).mapToObj(i -> store.getEntry(i).toString()).sorted().toList();
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        Path file = write(LINES);
+        assertTrue(BinaryStore.isBinary(file));
+        BinaryStore store = BinaryStore.open(file, false);
+        assertEquals(LINES.size(), store.size());
+        assertEquals(LINES.stream().sorted().toList(), read(store));
+        for (String line : LINES) {
+            Store.Entry entry = Store.Entry.parse(line);
+            int index = store.indexOf(entry.className);
+            assertEquals(line, store.getEntry(index).toString());
+            assertEquals(entry.className, store.getClassName(index));
+        }
+    }
+
+    @Test
+    void missingClasses() throws IOException {
+        BinaryStore store = BinaryStore.open(write(LINES), false);
+        assertEquals(-1, store.indexOf("com.foo.Missing"));
+        assertEquals(-1, store.indexOf("com.missing.Bar"));
+        assertEquals(-1, store.indexOf("Bar"));
+        assertEquals(-1, store.indexOf("com.foo.bar"));
+    }
+
+    @Test
+    void wildcards() throws IOException {
+        BinaryStore store = BinaryStore.open(write(LINES), false);
+        List<String> wildcards = Arrays.stream(store.getWildcardIndexes()).mapToObj(store::getClassName).sorted()
+                .toList();
+        assertEquals(List.of("com.foo.*", "com.foo.bar.*"), wildcards);
+    }
+
+    @Test
+    void mapToReport() throws IOException {
+        BinaryStore store = BinaryStore.open(write(List.of("u a.Used", "l a.Loaded", "n a.NotLoaded")), true);
+        assertFalse(store.isReport(store.indexOf("a.Used")));
+        assertTrue(store.isReport(store.indexOf("a.Loaded")));
+        assertTrue(store.isReport(store.indexOf("a.NotLoaded")));
+        for (int i = 0; i < store.size(); i++) {
+            assertEquals(Store.State.NOT_LOADED, store.getState(i));
+        }
+    }
+
+    @Test
+    void manyEntries() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            lines.add((i % 3 == 0 ? "u" : "l") + " pkg" + (i % 97) + ".sub.Class" + i);
+        }
+        BinaryStore store = BinaryStore.open(write(lines), false);
+        assertEquals(lines.stream().sorted().toList(), read(store));
+        for (String line : lines) {
+            assertEquals(line, store.getEntry(store.indexOf(Store.Entry.parse(line).className)).toString());
+        }
+    }
+
+    @Test
+    void empty() throws IOException {
+        BinaryStore store = BinaryStore.open(write(List.of()), false);
+        assertEquals(0, store.size());
+        assertArrayEquals(new int[0], store.getWildcardIndexes());
+        assertEquals(-1, store.indexOf("a.B"));
+    }
+
+    /** the entries in the order of the binary format, i.e. in the order of the entry indexes */
+    @Test
+    void entriesAreInTheOrderOfCompare() throws IOException {
+        BinaryStore store = BinaryStore.open(write(LINES), false);
+        for (int i = 1; i < store.size(); i++) {
+            assertTrue(BinaryStore.compare(store.getClassName(i - 1), store.getClassName(i)) < 0,
+                    store.getClassName(i - 1) + " " + store.getClassName(i));
+        }
+    }
+
+    /** compare orders like the UTF-8 bytes of the package and then of the simple name */
+    @Test
+    void compareLikeTheUtf8Bytes() {
+        Random random = new Random(42);
+        // with supplementary characters, which are before some other chars in UTF-16 but after them in UTF-8
+        String[] parts = {"a", "b", "B", "ab", ".", "$", "-", "_", "ü", "\uFF21", "\uD83D\uDE00", "*"};
+        for (int i = 0; i < 20_000; i++) {
+            String a = randomName(random, parts);
+            String b = randomName(random, parts);
+            assertEquals(Integer.signum(utf8Compare(a, b)), Integer.signum(BinaryStore.compare(a, b)), a + " " + b);
+        }
+        assertTrue(BinaryStore.compare("com.foo.baz", "com.foo.bar.A") < 0);
+        assertTrue(BinaryStore.compare("Default", "a.B") < 0);
+        assertEquals(0, BinaryStore.compare("a.B", "a.B"));
+    }
+
+    private static String randomName(Random random, String[] parts) {
+        StringBuilder name = new StringBuilder();
+        for (int i = random.nextInt(6); i >= 0; i--) {
+            name.append(parts[random.nextInt(parts.length)]);
+        }
+        return name.toString();
+    }
+
+    private static int utf8Compare(String a, String b) {
+        int aDot = a.lastIndexOf('.');
+        int bDot = b.lastIndexOf('.');
+        int cmp = Arrays.compareUnsigned(utf8(aDot == -1 ? "" : a.substring(0, aDot)),
+                utf8(bDot == -1 ? "" : b.substring(0, bDot)));
+        return cmp != 0 ? cmp : Arrays.compareUnsigned(utf8(a.substring(aDot + 1)), utf8(b.substring(bDot + 1)));
+    }
+
+    private static byte[] utf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** the streaming writer spills its sections to temporary files, the result is the same */
+    @Test
+    void writerSpillsToTemporaryFiles() throws IOException {
+        List<Store.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            entries.add(Store.Entry.parse((i % 3 == 0 ? "ur" : "l") + " pkg" + (i % 37) + ".Class" + i +
+                    (i % 3 == 0 ? " message " + (i % 5) : "")));
+        }
+        entries.add(Store.Entry.parse("n pkg1.*"));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BinaryStore.write(entries, expected);
+        entries.sort((a, b) -> BinaryStore.compare(a.className, b.className));
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (BinaryStore.Writer writer = new BinaryStore.Writer(1024)) {
+            for (Store.Entry entry : entries) {
+                writer.add(entry);
+            }
+            writer.writeTo(actual);
+        }
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        Path file = Files.write(directory.resolve("store.bin"), actual.toByteArray());
+        assertEquals(entries.stream().map(Store.Entry::toString).sorted().toList(),
+                read(BinaryStore.open(file, false)));
+    }
+
+    @Test
+    void writerRejectsEntriesOutOfOrder() throws IOException {
+        try (BinaryStore.Writer writer = new BinaryStore.Writer()) {
+            writer.add(Store.Entry.parse("u a.B"));
+            assertThrows(IllegalArgumentException.class, () -> writer.add(Store.Entry.parse("u a.A")));
+            assertThrows(IllegalArgumentException.class, () -> writer.add(Store.Entry.parse("l a.B")));
+            // the package comes first: a.Z is before a.b.A
+            writer.add(Store.Entry.parse("u a.Z"));
+            writer.add(Store.Entry.parse("u a.b.A"));
+            assertThrows(IllegalArgumentException.class, () -> writer.add(Store.Entry.parse("u a.C")));
+        }
+    }
+
+    @Test
+    void textIsNotBinary() throws IOException {
+        Path file = Files.writeString(directory.resolve("store.txt"), String.join("\n", LINES));
+        assertFalse(BinaryStore.isBinary(file));
+        assertThrows(IOException.class, () -> BinaryStore.open(file, false));
+    }
+}
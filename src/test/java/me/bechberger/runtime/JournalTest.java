@@ -0,0 +1,154 @@
+package me.bechberger.runtime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Replay of the records written by a {@link Journal}, including the recovery from incomplete records
+ */
+class JournalTest {
+
+    @TempDir
+    Path directory;
+
+    private static List<String> replay(Path file) throws IOException {
+        List<String> records = new ArrayList<>();
+        Journal.read(file, (state, className) -> records.add(state.prefix + " " + className));
+        return records;
+    }
+
+    /** record in the format of the journal, with the passed state byte */
+    private static void record(ByteArrayOutputStream out, int state, String className) {
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        out.write(state);
+        out.write(name.length >> 8);
+        out.write(name.length);
+        out.writeBytes(name);
+    }
+
+    @Test
+    void replay() throws IOException {
+        Path file = directory.resolve("journal");
+        try (Journal journal = new Journal(file, 0)) {
+            journal.append(Store.State.LOADED, "com.foo.Bar");
+            journal.append(Store.State.USED, "com.foo.Bar");
+            journal.append(Store.State.LOADED, "com.föö.Ünïcode");
+            journal.append(Store.State.USED, "Default");
+        }
+        assertEquals(List.of("l com.foo.Bar", "u com.foo.Bar", "l com.föö.Ünïcode", "u Default"), replay(file));
+    }
+
+    @Test
+    void appendAfterCloseIsIgnored() throws IOException {
+        Path file = directory.resolve("journal");
+        Journal journal = new Journal(file, 0);
+        journal.append(Store.State.LOADED, "a.B");
+        journal.close();
+        journal.append(Store.State.USED, "a.B");
+        assertEquals(List.of("l a.B"), replay(file));
+    }
+
+    @Test
+    void backgroundFlushing() throws IOException, InterruptedException {
+        Path file = directory.resolve("journal");
+        try (Journal journal = new Journal(file, 10)) {
+            journal.append(Store.State.LOADED, "a.B");
+            Thread.sleep(50);
+            journal.append(Store.State.USED, "a.B");
+        }
+        assertEquals(List.of("l a.B", "u a.B"), replay(file));
+    }
+
+    @Test
+    void concurrentAppends() throws IOException, InterruptedException {
+        Path file = directory.resolve("journal");
+        int threadCount = 8;
+        int perThread = 10_000;
+        try (Journal journal = new Journal(file, 1)) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                int thread = t;
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        journal.append(Store.State.USED, "thread" + thread + ".Class" + i);
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        List<String> records = replay(file);
+        assertEquals(threadCount * perThread, records.size());
+        assertEquals(threadCount * perThread, new HashSet<>(records).size());
+    }
+
+    @Test
+    void manySegments() throws IOException {
+        Path file = directory.resolve("journal");
+        // long names, so that the records fill more than one segment and leave padding at its end
+        String padding = "x".repeat(1000);
+        int count = 20_000;
+        try (Journal journal = new Journal(file, 0)) {
+            for (int i = 0; i < count; i++) {
+                journal.append(Store.State.LOADED, "a.Class" + i + padding);
+            }
+        }
+        List<String> records = replay(file);
+        assertEquals(count, records.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("l a.Class" + i + padding, records.get(i));
+        }
+    }
+
+    @Test
+    void incompleteRecordsAreSkipped() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record(out, 'l', "a.First");
+        // reserved, but the state was not yet written
+        record(out, 0, "a.NoState");
+        // state written, but the name only partially
+        out.write('u');
+        out.write(0);
+        out.write(9);
+        out.writeBytes("a.Pa".getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(new byte[5]);
+        // padding, like at the end of a segment
+        out.writeBytes(new byte[17]);
+        record(out, 'u', "a.Second");
+        // cut off by the end of the file
+        out.write('u');
+        out.write(0);
+        out.write(100);
+        out.writeBytes("a.Truncated".getBytes(StandardCharsets.UTF_8));
+        Path file = Files.write(directory.resolve("journal"), out.toByteArray());
+        assertEquals(List.of("l a.First", "u a.Second"), replay(file));
+    }
+
+    @Test
+    void loadIntoStore() throws IOException {
+        Path file = directory.resolve("journal");
+        try (Journal journal = new Journal(file, 0)) {
+            journal.append(Store.State.LOADED, "a.Loaded");
+            // records of different threads might be out of order, the largest state wins
+            journal.append(Store.State.USED, "a.Used");
+            journal.append(Store.State.LOADED, "a.Used");
+        }
+        Store store = new Store().loadJournal(file);
+        assertEquals(Set.of("a.Used"), store.getUsedClasses());
+        assertEquals(Set.of("a.Loaded", "a.Used"), store.getLoadedClasses());
+    }
+}
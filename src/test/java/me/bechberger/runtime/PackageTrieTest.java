@@ -0,0 +1,115 @@
+package me.bechberger.runtime;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Longest prefix matching of {@link PackageTrie}, with prefixes at and within package segments
+ */
+class PackageTrieTest {
+
+    @Test
+    void longestMatch() {
+        PackageTrie<String> trie = new PackageTrie<>();
+        trie.put("com.", "com");
+        trie.put("com.foo.", "com.foo");
+        trie.put("com.foo.bar.", "com.foo.bar");
+        assertEquals("com", trie.findLongestMatch("com.Main"));
+        assertEquals("com", trie.findLongestMatch("com.other.Main"));
+        assertEquals("com.foo", trie.findLongestMatch("com.foo.Main"));
+        assertEquals("com.foo", trie.findLongestMatch("com.foo.baz.Main"));
+        assertEquals("com.foo.bar", trie.findLongestMatch("com.foo.bar.Main"));
+        assertEquals("com.foo.bar", trie.findLongestMatch("com.foo.bar.sub.Main"));
+        assertNull(trie.findLongestMatch("org.foo.Main"));
+        assertNull(trie.findLongestMatch("Main"));
+        // "com.foo" is a class in the package com
+        assertEquals("com", trie.findLongestMatch("com.foo"));
+    }
+
+    @Test
+    void fragments() {
+        PackageTrie<String> trie = new PackageTrie<>();
+        trie.put("com.fo", "com.fo");
+        trie.put("com.foo.B", "com.foo.B");
+        trie.put("com.foo.", "com.foo");
+        assertEquals("com.fo", trie.findLongestMatch("com.fob.Main"));
+        assertEquals("com.fo", trie.findLongestMatch("com.fo"));
+        assertNull(trie.findLongestMatch("com.Foo"));
+        assertEquals("com.foo", trie.findLongestMatch("com.foo.Main"));
+        assertEquals("com.foo.B", trie.findLongestMatch("com.foo.Bar"));
+        assertEquals("com.foo.B", trie.findLongestMatch("com.foo.B"));
+        assertNull(trie.findLongestMatch("com.f"));
+        assertNull(trie.findLongestMatch("com.bar.Main"));
+    }
+
+    @Test
+    void emptyPrefixMatchesEverything() {
+        PackageTrie<String> trie = new PackageTrie<>();
+        assertTrue(trie.isEmpty());
+        trie.put("", "all");
+        trie.put("com.", "com");
+        assertEquals("all", trie.findLongestMatch("Main"));
+        assertEquals("all", trie.findLongestMatch("org.Main"));
+        assertEquals("com", trie.findLongestMatch("com.Main"));
+    }
+
+    @Test
+    void laterValueReplacesEarlier() {
+        PackageTrie<String> trie = new PackageTrie<>();
+        assertNull(trie.put("com.foo.", "first"));
+        assertNull(trie.put("com.fo", "first fragment"));
+        trie.put("org.", "org");
+        assertEquals("first", trie.put("com.foo.", "second"));
+        assertEquals("first fragment", trie.put("com.fo", "second fragment"));
+        assertEquals("second", trie.findLongestMatch("com.foo.Main"));
+        assertEquals("second fragment", trie.findLongestMatch("com.fob.Main"));
+        // in the order the prefixes were first added
+        assertEquals(List.of("second", "second fragment", "org"), List.copyOf(trie.values()));
+    }
+
+    @Test
+    void manyChildrenAndHashCollisions() {
+        PackageTrie<String> trie = new PackageTrie<>();
+        // "Aa" and "BB" have the same hash code
+        trie.put("Aa.", "Aa");
+        trie.put("BB.", "BB");
+        for (int i = 0; i < 1000; i++) {
+            trie.put("com.company" + i + ".", "company" + i);
+        }
+        assertEquals("Aa", trie.findLongestMatch("Aa.Main"));
+        assertEquals("BB", trie.findLongestMatch("BB.Main"));
+        assertNull(trie.findLongestMatch("AaBB.Main"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("company" + i, trie.findLongestMatch("com.company" + i + ".sub.Main"));
+        }
+        assertNull(trie.findLongestMatch("com.company1000.Main"));
+        assertNull(trie.findLongestMatch("com.company.Main"));
+    }
+
+    @Test
+    void lookupDoesNotAllocate() {
+        PackageTrie<String> trie = new PackageTrie<>();
+        trie.put("com.foo.bar.", "com.foo.bar");
+        trie.put("org.", "org");
+        String[] classNames = {"com.foo.bar.baz.Main", "com.foo.other.Main", "net.Main"};
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        // warm up, so that the measurement does not include class loading
+        for (int i = 0; i < 10_000; i++) {
+            trie.findLongestMatch(classNames[i % classNames.length]);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 30_000; i++) {
+            trie.findLongestMatch(classNames[i % classNames.length]);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        // a string per segment would be more than 1 MB
+        assertTrue(allocated < 64 * 1024, allocated + " bytes allocated");
+    }
+}
@@ -0,0 +1,152 @@
+package me.bechberger.runtime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Parity of the chunked {@link TextStoreLoader} with parsing the lines one by one via {@link Store.Entry#parse}
+ * (like {@code Store.load} did before), for one and for many chunks
+ */
+class TextStoreLoaderTest {
+
+    @TempDir
+    Path directory;
+
+    private static final String CONTENT = String.join("\n",
+            "u com.foo.Bar",
+            "l com.foo.Bar$Inner",
+            "nr com.foo.* report everything in foo",
+            "nd com.foo.Deleted",
+            "ur com.foo.Reported with a message with spaces",
+            "",
+            "n com.foo.bar.*",
+            "lrd com.föö.Ünïcode ünïcode message",
+            "u Default",
+            "u com.foo.Bar") + "\n";
+
+    /** entries in the order of the file, parsed line by line */
+    private static List<String> parseLines(String content, boolean mapToReport) {
+        List<String> entries = new ArrayList<>();
+        for (String line : content.split("\r?\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            Store.Entry entry = Store.Entry.parse(line);
+            if (mapToReport) {
+                entry = new Store.Entry(entry.className, Store.State.NOT_LOADED,
+                        entry.getState() != Store.State.USED, entry.delete, entry.reportMessage);
+            }
+            entries.add(entry.toString());
+        }
+        return entries;
+    }
+
+    /** entries in the order of the file, single class entries first */
+    private List<String> parseChunked(String content, int chunkSize, boolean mapToReport) throws IOException {
+        Path file = Files.writeString(directory.resolve("store.txt"), content);
+        TextStoreLoader loader = TextStoreLoader.open(file, chunkSize);
+        Map<Integer, List<String>> chunks = new ConcurrentHashMap<>();
+        List<Store.Entry> multiClassEntries = loader.parse(mapToReport,
+                (chunk, entry) -> chunks.computeIfAbsent(chunk, c -> new ArrayList<>()).add(entry.toString()));
+        List<String> entries = new ArrayList<>();
+        for (int chunk = 0; chunk < loader.getChunkCount(); chunk++) {
+            entries.addAll(chunks.getOrDefault(chunk, List.of()));
+        }
+        multiClassEntries.forEach(e -> entries.add(e.toString()));
+        return entries;
+    }
+
+    private static List<String> singleClassesFirst(List<String> entries) {
+        List<String> result = new ArrayList<>(entries.stream().filter(e -> !e.split(" ")[1].endsWith("*")).toList());
+        result.addAll(entries.stream().filter(e -> e.split(" ")[1].endsWith("*")).toList());
+        return result;
+    }
+
+    private void assertParity(String content) throws IOException {
+        for (boolean mapToReport : new boolean[]{false, true}) {
+            List<String> expected = singleClassesFirst(parseLines(content, mapToReport));
+            List<String> oneChunk = parseChunked(content, Integer.MAX_VALUE, mapToReport);
+            assertEquals(expected, oneChunk);
+            for (int chunkSize : new int[]{1, 2, 5, 17, 64}) {
+                assertEquals(oneChunk, parseChunked(content, chunkSize, mapToReport), "chunk size " + chunkSize);
+            }
+        }
+    }
+
+    @Test
+    void linesCrossingChunkBoundaries() throws IOException {
+        assertParity(CONTENT);
+        Path file = Files.writeString(directory.resolve("store.txt"), CONTENT);
+        assertTrue(TextStoreLoader.open(file, 17).getChunkCount() > 1);
+    }
+
+    @Test
+    void crlfLineEndings() throws IOException {
+        assertParity(CONTENT.replace("\n", "\r\n"));
+    }
+
+    @Test
+    void noNewlineAtTheEnd() throws IOException {
+        assertParity(CONTENT.substring(0, CONTENT.length() - 1));
+        assertParity(CONTENT.replace("\n", "\r\n").substring(0, CONTENT.replace("\n", "\r\n").length() - 2));
+    }
+
+    @Test
+    void emptyFile() throws IOException {
+        assertParity("");
+        assertParity("\n\n");
+        Path file = Files.writeString(directory.resolve("store.txt"), "");
+        assertEquals(0, TextStoreLoader.open(file).getChunkCount());
+    }
+
+    @Test
+    void wildcardEntriesInFileOrder() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("nr pkg").append(i).append(".* message ").append(i).append('\n');
+            content.append("u pkg").append(i).append(".Class\n");
+        }
+        assertParity(content.toString());
+    }
+
+    /** the store keeps the last line for a class, like a map filled line by line */
+    @Test
+    void storeLoadWithManyChunks() throws IOException {
+        Random random = new Random(42);
+        StringBuilder content = new StringBuilder();
+        Map<String, String> expected = new TreeMap<>();
+        String[] prefixes = {"n", "l", "u", "ur", "nd"};
+        // larger than a few default chunks
+        while (content.length() < 3 * TextStoreLoader.CHUNK_SIZE) {
+            String line = prefixes[random.nextInt(prefixes.length)] + " pkg" + random.nextInt(100) + ".Class" +
+                    random.nextInt(20_000);
+            content.append(line).append(random.nextBoolean() ? "\n" : "\r\n");
+            Store.Entry entry = Store.Entry.parse(line);
+            expected.put(entry.className, entry.toString());
+        }
+        content.append("n pkg1.*\nu pkg2.* used\n");
+        expected.put("pkg1.*", "n pkg1.*");
+        expected.put("pkg2.*", "u pkg2.* used");
+        Path file = Files.writeString(directory.resolve("store.txt"), content);
+        assertTrue(TextStoreLoader.open(file).getChunkCount() > 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Store().load(file).writeTo(out);
+        List<String> lines = List.of(out.toString(StandardCharsets.UTF_8).split("\n"));
+        assertEquals(List.copyOf(expected.values()), lines);
+    }
+}